@@ -0,0 +1,96 @@
+package one.nalim.bench;
+
+import one.nalim.Arena;
+import one.nalim.SlabAllocator;
+import one.nalim.example.Mem;
+import org.openjdk.jmh.annotations.*;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * Allocates and frees a batch of short-lived native buffers of mixed sizes.
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+@OperationsPerInvocation(AllocatorBench.BATCH)
+public class AllocatorBench {
+    static final int BATCH = 64;
+    private static final int[] SIZES = {16, 48, 100, 256, 512, 1000, 4096, 64};
+
+    private static final Unsafe unsafe = getUnsafe();
+
+    SlabAllocator slab = new SlabAllocator();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final long[] addresses = new long[BATCH];
+        final Arena arena = new Arena();
+
+        @TearDown
+        public void tearDown() {
+            arena.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        slab.close();
+    }
+
+    @Benchmark
+    public long malloc(ThreadState state) {
+        long[] addresses = state.addresses;
+        for (int i = 0; i < BATCH; i++) {
+            addresses[i] = Mem.allocate(SIZES[i & 7]);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            Mem.release(addresses[i]);
+        }
+        return addresses[0];
+    }
+
+    @Benchmark
+    public long unsafe(ThreadState state) {
+        long[] addresses = state.addresses;
+        for (int i = 0; i < BATCH; i++) {
+            addresses[i] = unsafe.allocateMemory(SIZES[i & 7]);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            unsafe.freeMemory(addresses[i]);
+        }
+        return addresses[0];
+    }
+
+    @Benchmark
+    public long slab(ThreadState state) {
+        long[] addresses = state.addresses;
+        for (int i = 0; i < BATCH; i++) {
+            addresses[i] = slab.allocate(SIZES[i & 7]);
+        }
+        for (int i = 0; i < BATCH; i++) {
+            slab.free(addresses[i]);
+        }
+        return addresses[0];
+    }
+
+    @Benchmark
+    public long arena(ThreadState state) {
+        long[] addresses = state.addresses;
+        for (int i = 0; i < BATCH; i++) {
+            addresses[i] = state.arena.allocate(SIZES[i & 7]);
+        }
+        state.arena.reset();
+        return addresses[0];
+    }
+
+    private static Unsafe getUnsafe() {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            return (Unsafe) f.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
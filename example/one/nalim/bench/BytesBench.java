@@ -0,0 +1,64 @@
+package one.nalim.bench;
+
+import one.nalim.Bytes;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+@State(Scope.Benchmark)
+public class BytesBench {
+
+    @Param({"64", "4096", "65536"})
+    int length;
+
+    byte[] a;
+    byte[] b;
+
+    @Setup
+    public void setup() {
+        a = new byte[length];
+        ThreadLocalRandom.current().nextBytes(a);
+        for (int i = 0; i < length; i++) {
+            if (a[i] == 0) a[i] = 1;
+        }
+        b = a.clone();
+        b[length - 1] = 0;
+    }
+
+    @Benchmark
+    public int mismatch_java() {
+        return Arrays.mismatch(a, b);
+    }
+
+    @Benchmark
+    public int compare_memcmp() {
+        return Bytes.compare(a, 0, b, 0, length);
+    }
+
+    @Benchmark
+    public int indexOf_java() {
+        for (int i = 0; i < b.length; i++) {
+            if (b[i] == 0) return i;
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int indexOf_memchr() {
+        return Bytes.indexOf(b, 0, length, (byte) 0);
+    }
+
+    @Benchmark
+    public long crc32_java() {
+        CRC32 crc32 = new CRC32();
+        crc32.update(a, 0, length);
+        return crc32.getValue();
+    }
+
+    @Benchmark
+    public int crc32_zlib() {
+        return Bytes.crc32(0, a, 0, length);
+    }
+}
@@ -0,0 +1,74 @@
+package one.nalim.bench;
+
+import one.nalim.FileIO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+@State(Scope.Benchmark)
+public class FileIOBench {
+    private static final long FILE_SIZE = 64 * 1024 * 1024;
+
+    // tmpfs and local disk
+    @Param({"/dev/shm", "/var/tmp"})
+    String dir;
+
+    @Param({"512", "4096", "65536"})
+    int length;
+
+    File file;
+    FileChannel channel;
+    int fd;
+    byte[] array;
+    ByteBuffer heapBuffer;
+    ByteBuffer directBuffer;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("nalim", ".bin", new File(dir));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byte[] chunk = new byte[1024 * 1024];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        for (long pos = 0; pos < FILE_SIZE; pos += chunk.length) {
+            channel.write(ByteBuffer.wrap(chunk), pos);
+        }
+
+        fd = FileIO.open(file.getPath(), FileIO.O_RDONLY, 0);
+        array = new byte[length];
+        heapBuffer = ByteBuffer.wrap(array);
+        directBuffer = ByteBuffer.allocateDirect(length);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileIO.close(fd);
+        channel.close();
+        file.delete();
+    }
+
+    private long randomPosition() {
+        return ThreadLocalRandom.current().nextLong(FILE_SIZE / length) * length;
+    }
+
+    @Benchmark
+    public int channel_heap() throws IOException {
+        heapBuffer.clear();
+        return channel.read(heapBuffer, randomPosition());
+    }
+
+    @Benchmark
+    public int channel_direct() throws IOException {
+        directBuffer.clear();
+        return channel.read(directBuffer, randomPosition());
+    }
+
+    @Benchmark
+    public int nalim_pread() throws IOException {
+        return FileIO.pread(fd, array, 0, length, randomPosition());
+    }
+}
@@ -0,0 +1,46 @@
+package one.nalim.bench;
+
+import one.nalim.Intrinsics;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+public class IntrinsicsBench {
+
+    byte[] array = new byte[4096];
+    int index;
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public long timestamp() {
+        return Intrinsics.timestamp();
+    }
+
+    @Benchmark
+    public long timestampSerialized() {
+        return Intrinsics.timestampSerialized();
+    }
+
+    @Benchmark
+    public void onSpinWait() {
+        Thread.onSpinWait();
+    }
+
+    @Benchmark
+    public void spinWait() {
+        Intrinsics.spinWait();
+    }
+
+    @Benchmark
+    public void prefetch() {
+        Intrinsics.prefetch(array, index = (index + 64) & 4095);
+    }
+
+    @Benchmark
+    public int currentCpu() {
+        return Intrinsics.currentCpu();
+    }
+}
@@ -0,0 +1,105 @@
+package one.nalim.bench;
+
+import one.nalim.FileIO;
+import one.nalim.IoUring;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random 4 KB reads from a local file, {@code batch} operations per invocation.
+ * Multiply the score by batch to get operations per second.
+ */
+@State(Scope.Benchmark)
+public class IoUringBench {
+    private static final long FILE_SIZE = 256 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 4096;
+
+    @Param({"1", "16", "64"})
+    int batch;
+
+    @Param("/var/tmp")
+    String dir;
+
+    File file;
+    FileChannel channel;
+    AsynchronousFileChannel asyncChannel;
+    int fd;
+    IoUring ring;
+    ByteBuffer[] buffers;
+    Future<?>[] futures;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("nalim", ".bin", new File(dir));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(1024 * 1024);
+        for (long pos = 0; pos < FILE_SIZE; pos += chunk.capacity()) {
+            chunk.clear();
+            channel.write(chunk, pos);
+        }
+        asyncChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        fd = FileIO.open(file.getPath(), FileIO.O_RDONLY, 0);
+        ring = new IoUring(batch);
+        buffers = new ByteBuffer[batch];
+        for (int i = 0; i < batch; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        ring.registerBuffers(buffers);
+        futures = new Future[batch];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ring.close();
+        FileIO.close(fd);
+        asyncChannel.close();
+        channel.close();
+        file.delete();
+    }
+
+    private static long randomPosition() {
+        return ThreadLocalRandom.current().nextLong(FILE_SIZE / BLOCK_SIZE) * BLOCK_SIZE;
+    }
+
+    @Benchmark
+    public int fileChannel() throws IOException {
+        int bytes = 0;
+        for (int i = 0; i < batch; i++) {
+            buffers[i].clear();
+            bytes += channel.read(buffers[i], randomPosition());
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int asyncFileChannel() throws Exception {
+        for (int i = 0; i < batch; i++) {
+            buffers[i].clear();
+            futures[i] = asyncChannel.read(buffers[i], randomPosition());
+        }
+        int bytes = 0;
+        for (int i = 0; i < batch; i++) {
+            bytes += (Integer) futures[i].get();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int ioUring() throws IOException {
+        for (int i = 0; i < batch; i++) {
+            buffers[i].clear();
+            ring.prepareRead(fd, buffers[i], randomPosition(), i);
+        }
+        ring.submitAndWait(batch);
+        return ring.poll((userData, result, flags) -> {});
+    }
+}
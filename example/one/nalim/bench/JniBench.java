@@ -17,11 +17,19 @@ public class JniBench {
     @Param({"10", "100", "1000"})
     int length;
 
+    long c = 9876543210L;
+    float d = 0.5f;
+    double x = 1.25;
+
     long[] array;
+    double[] v1;
+    double[] v2;
 
     @Setup
     public void setup() {
         array = ThreadLocalRandom.current().longs(length).toArray();
+        v1 = ThreadLocalRandom.current().doubles(length).toArray();
+        v2 = ThreadLocalRandom.current().doubles(length).toArray();
     }
 
     @Benchmark
@@ -34,6 +42,17 @@ public class JniBench {
         return raw_add(a, b);
     }
 
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dnalim.nearCalls=false")
+    public int add_nalim_far() {
+        return raw_add(a, b);
+    }
+
+    @Benchmark
+    public int add_nalim_blocking() {
+        return raw_add_blocking(a, b);
+    }
+
     @Benchmark
     public int add_panama() throws Throwable {
         return (int) raw_add_mh.invoke(a, b);
@@ -49,17 +68,56 @@ public class JniBench {
         return raw_max(array, array.length);
     }
 
+    @Benchmark
+    public double mix_jni() {
+        return mix(a, x, c, d);
+    }
+
+    @Benchmark
+    public double mix_nalim() {
+        return raw_mix(a, x, c, d);
+    }
+
+    @Benchmark
+    public double mix_panama() throws Throwable {
+        return (double) raw_mix_mh.invoke(a, x, c, d);
+    }
+
+    @Benchmark
+    public double dot_jni() {
+        return dot(v1, v2, v1.length);
+    }
+
+    @Benchmark
+    public double dot_nalim() {
+        return raw_dot(v1, v2, v1.length);
+    }
+
     static native int add(int a, int b);
 
     static native long max(long[] array, int length);
 
+    static native double mix(int a, double b, long c, float d);
+
+    static native double dot(double[] v1, double[] v2, int length);
+
     @Link
     static native int raw_add(int a, int b);
 
+    @Link(name = "raw_add", mode = Link.Mode.BLOCKING)
+    static native int raw_add_blocking(int a, int b);
+
     @Link
     static native long raw_max(long[] array, int length);
 
+    @Link
+    static native double raw_mix(int a, double b, long c, float d);
+
+    @Link
+    static native double raw_dot(double[] v1, double[] v2, int length);
+
     private static final MethodHandle raw_add_mh;
+    private static final MethodHandle raw_mix_mh;
 
     static {
         System.loadLibrary("jnibench");
@@ -68,5 +126,10 @@ public class JniBench {
         raw_add_mh = java.lang.foreign.Linker.nativeLinker().downcallHandle(
                 SymbolLookup.loaderLookup().lookup("raw_add").orElseThrow(),
                 FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+
+        raw_mix_mh = java.lang.foreign.Linker.nativeLinker().downcallHandle(
+                SymbolLookup.loaderLookup().lookup("raw_mix").orElseThrow(),
+                FunctionDescriptor.of(ValueLayout.JAVA_DOUBLE, ValueLayout.JAVA_INT, ValueLayout.JAVA_DOUBLE,
+                        ValueLayout.JAVA_LONG, ValueLayout.JAVA_FLOAT));
     }
 }
@@ -1,7 +1,7 @@
 #include <jni.h>
 
 JNIEXPORT jint JNICALL
-Java_bench_JniBench_add(JNIEnv* env, jclass unused, jint a, jint b) {
+Java_one_nalim_bench_JniBench_add(JNIEnv* env, jclass unused, jint a, jint b) {
     return a + b;
 }
 
@@ -11,7 +11,7 @@ raw_add(jint a, jint b) {
 }
 
 JNIEXPORT jlong JNICALL
-Java_bench_JniBench_max(JNIEnv* env, jclass unused, jlongArray array, jint length) {
+Java_one_nalim_bench_JniBench_max(JNIEnv* env, jclass unused, jlongArray array, jint length) {
     jboolean isCopy;
     jlong* data = (jlong*) (*env)->GetPrimitiveArrayCritical(env, array, &isCopy);
 
@@ -34,3 +34,40 @@ raw_max(jlong* data, jint length) {
     }
     return max;
 }
+
+JNIEXPORT jdouble JNICALL
+Java_one_nalim_bench_JniBench_mix(JNIEnv* env, jclass unused, jint a, jdouble b, jlong c, jfloat d) {
+    return a * b + c * d;
+}
+
+JNIEXPORT jdouble JNICALL
+raw_mix(jint a, jdouble b, jlong c, jfloat d) {
+    return a * b + c * d;
+}
+
+JNIEXPORT jdouble JNICALL
+Java_one_nalim_bench_JniBench_dot(JNIEnv* env, jclass unused, jdoubleArray v1, jdoubleArray v2, jint length) {
+    jboolean isCopy;
+    jdouble* data1 = (jdouble*) (*env)->GetPrimitiveArrayCritical(env, v1, &isCopy);
+    jdouble* data2 = (jdouble*) (*env)->GetPrimitiveArrayCritical(env, v2, &isCopy);
+
+    jdouble sum = 0;
+    jint i;
+    for (i = 0; i < length; i++) {
+        sum += data1[i] * data2[i];
+    }
+
+    (*env)->ReleasePrimitiveArrayCritical(env, v2, data2, JNI_ABORT);
+    (*env)->ReleasePrimitiveArrayCritical(env, v1, data1, JNI_ABORT);
+    return sum;
+}
+
+JNIEXPORT jdouble JNICALL
+raw_dot(jdouble* data1, jdouble* data2, jint length) {
+    jdouble sum = 0;
+    jint i;
+    for (i = 0; i < length; i++) {
+        sum += data1[i] * data2[i];
+    }
+    return sum;
+}
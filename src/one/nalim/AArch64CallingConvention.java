@@ -18,53 +18,653 @@
 
 package one.nalim;
 
+import jdk.vm.ci.code.site.Site;
+import jdk.vm.ci.meta.JavaKind;
+import jdk.vm.ci.meta.ResolvedJavaField;
+
 import java.lang.annotation.Annotation;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 class AArch64CallingConvention extends CallingConvention {
 
     // AArch64 calling convention:
     //     Java: x1, x2, x3, x4, x5, x6, x7, x0, stack
     //   Native: x0, x1, x2, x3, x4, x5, x6, x7, stack
+    //
+    // Floating point arguments are passed in v0 - v7, then on the stack,
+    // independently of integer arguments in both conventions.
+    // Java stack arguments occupy 8-byte slots, and so do native ones,
+    // except on Apple platforms, where stack arguments are packed
+    // according to their natural size and alignment.
+
+    private final boolean apple;
+
+    AArch64CallingConvention(boolean apple) {
+        this.apple = apple;
+    }
 
     @Override
     public void javaToNative(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
+        moveRegisterArgs(buf, types, annotations, true);
+    }
+
+    @Override
+    void emitStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int[] nativeOffsets = apple ? packedStackOffsets(types) : null;
+        if (nativeOffsets == null) {
+            super.emitStub(buf, sites, types, annotations, address);
+            return;
+        }
+
+        enterFrame(buf, nativeOffsets[types.length]);
+        copyStackArgs(buf, types, annotations, nativeOffsets);
+        moveRegisterArgs(buf, types, annotations, false);
+        emitLinkedCall(buf, sites, address);
+        leaveFrame(buf);
+    }
+
+    @Override
+    void emitLastErrorStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int count = types.length - 1;
+        Class<?>[] nativeTypes = Arrays.copyOf(types, count);
+        Annotation[][] nativeAnnotations = Arrays.copyOf(annotations, count);
+
+        int[] nativeOffsets = stackOffsets(nativeTypes);
+
+        // Above the outgoing area: the array for the error code, then saved x0 and d0
+        int saveArea = (nativeOffsets[count] + 7) & ~7;
+        enterFrame(buf, saveArea + 24);
+
+        saveLastArg(buf, types, saveArea);
+        copyStackArgs(buf, nativeTypes, nativeAnnotations, nativeOffsets);
+        moveRegisterArgs(buf, nativeTypes, nativeAnnotations, false);
+        emitLinkedCall(buf, sites, address);
+
+        buf.putInt(0xf90003e0 | imm12(saveArea / 8 + 1) << 10);  // str x0, [sp, #saveArea+8]
+        buf.putInt(0xfd0003e0 | imm12(saveArea / 8 + 2) << 10);  // str d0, [sp, #saveArea+16]
+        emitLinkedCall(buf, sites, errnoLocation());
+        buf.putInt(0xb9400000);                                   // ldr w0, [x0]
+        buf.putInt(0xf94003e9 | imm12(saveArea / 8) << 10);       // ldr x9, [sp, #saveArea]
+        buf.putInt(0xb4000049);                                   // cbz x9, +8
+        buf.putInt(0xb9000120 | imm12(arrayBaseOffset(int[].class) / 4) << 10);  // str w0, [x9, #base]
+        buf.putInt(0xf94003e0 | imm12(saveArea / 8 + 1) << 10);  // ldr x0, [sp, #saveArea+8]
+        buf.putInt(0xfd4003e0 | imm12(saveArea / 8 + 2) << 10);  // ldr d0, [sp, #saveArea+16]
+        leaveFrame(buf);
+    }
+
+    @Override
+    void emitReturnStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int count = types.length - 1;
+        Class<?>[] nativeTypes = Arrays.copyOf(types, count);
+        Annotation[][] nativeAnnotations = Arrays.copyOf(annotations, count);
+        ResolvedJavaField[] fields = returnFields(types[count], annotations[count]);
+
+        int[] nativeOffsets = stackOffsets(nativeTypes);
+
+        // Above the outgoing area: the object that receives return values
+        int saveArea = (nativeOffsets[count] + 7) & ~7;
+        enterFrame(buf, saveArea + 8);
+
+        saveLastArg(buf, types, saveArea);
+        copyStackArgs(buf, nativeTypes, nativeAnnotations, nativeOffsets);
+        moveRegisterArgs(buf, nativeTypes, nativeAnnotations, false);
+        emitLinkedCall(buf, sites, address);
+
+        buf.putInt(0xf94003e9 | imm12(saveArea / 8) << 10);  // ldr x9, [sp, #saveArea]
+        buf.putInt(0xb4000009 | (fields.length + 1) << 5);   // cbz x9, done
+        for (int i = 0; i < fields.length; i++) {
+            int offset = fields[i].getOffset();
+            if (fields[i].getJavaKind() == JavaKind.Long) {
+                buf.putInt(0xf9000120 | i | imm12(offset / 8) << 10);  // str x0, [x9, #offset]
+            } else {
+                buf.putInt(0xb9000120 | i | imm12(offset / 4) << 10);  // str w0, [x9, #offset]
+            }
+        }
+        leaveFrame(buf);
+    }
+
+    // Saves the last Java argument at [sp+offset] of the frame set up by enterFrame
+    private static void saveLastArg(ByteBuffer buf, Class<?>[] types, int offset) {
+        int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
+        for (int i = 0; i < types.length - 1; i++) {
+            if (isFloatingPoint(types[i]) ? fpIndex++ >= 8 : index++ >= 8) {
+                stackSlot++;
+            }
+        }
+        if (index < 8) {
+            // str x1, [sp, #offset]
+            buf.putInt(0xf90003e0 | imm12(offset / 8) << 10 | (index + 1) & 7);
+        } else {
+            buf.putInt(0xf94003a9 | imm12(2 + stackSlot) << 10);  // ldr x9, [x29, #16+slot*8]
+            buf.putInt(0xf90003e9 | imm12(offset / 8) << 10);     // str x9, [sp, #offset]
+        }
+    }
+
+    @Override
+    void emitReturnOffsetStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int[] nativeOffsets = stackOffsets(types);
+
+        // Above the outgoing area: the first native argument
+        int saveArea = (nativeOffsets[types.length] + 7) & ~7;
+        enterFrame(buf, saveArea + 8);
+
+        copyStackArgs(buf, types, annotations, nativeOffsets);
+        moveRegisterArgs(buf, types, annotations, false);
+        buf.putInt(0xf90003e0 | imm12(saveArea / 8) << 10);  // str x0, [sp, #saveArea]
+        emitLinkedCall(buf, sites, address);
+
+        buf.putInt(0xb4000080);                              // cbz x0, +16
+        buf.putInt(0xf94003e9 | imm12(saveArea / 8) << 10);  // ldr x9, [sp, #saveArea]
+        buf.putInt(0xcb090000);                              // sub x0, x0, x9
+        buf.putInt(0x14000002);                              // b +8
+        buf.putInt(0x92800000);                              // mov x0, #-1
+        leaveFrame(buf);
+    }
+
+    @Override
+    void emitSyscall(ByteBuffer buf, int number) {
+        if (apple) {
+            super.emitSyscall(buf, number);
+            return;
+        }
+        buf.putInt(0xd2800008 | number << 5);           // mov x8, #number
+        buf.putInt(0xd4000001);                         // svc #0
+        buf.putInt(0xd65f03c0);                         // ret
+    }
+
+    @Override
+    void emitCounter(ByteBuffer buf, long counters) {
+        buf.putInt(0xd28f3629);                         // mov x9, #0x79b1
+        buf.putInt(0xf2b3c6e9);                         // movk x9, #0x9e37, lsl #16
+        buf.putInt(0x9b097f88);                         // mul x8, x28, x9
+        buf.putInt(0xd35c7d08);                         // ubfx x8, x8, #28, #4
+        emitAddress(buf, 9, counters);
+        buf.putInt(0x8b081929);                         // add x9, x9, x8, lsl #6
+        buf.putInt(0xc85f7d2a);                         // ldxr x10, [x9]
+        buf.putInt(0x9100054a);                         // add x10, x10, #1
+        buf.putInt(0xc8087d2a);                         // stxr w8, x10, [x9]
+        buf.putInt(0x35ffffa8);                         // cbnz w8, -12
+    }
+
+    @Override
+    void emitTimingWrapper(ByteBuffer buf, List<Site> sites, long address, long data, long threshold, int stackSlots) {
+        enterFrame(buf, stackSlots * 8 + 32);
+        buf.putInt(0xa93f53b3);                         // stp x19, x20, [x29, #-16]
+        buf.putInt(0xa93e5bb5);                         // stp x21, x22, [x29, #-32]
+        for (int i = 0; i < stackSlots; i++) {
+            buf.putInt(0xf94003a9 | imm12(2 + i) << 10);  // ldr x9, [x29, #16+i*8]
+            buf.putInt(0xf90003e9 | imm12(i) << 10);      // str x9, [sp, #i*8]
+        }
+
+        buf.putInt(0xd53be053);                         // mrs x19, cntvct_el0
+        emitLinkedCall(buf, sites, address);
+        buf.putInt(0xaa0003f4);                         // mov x20, x0
+        buf.putInt(0xaa0103f5);                         // mov x21, x1
+
+        buf.putInt(0xd53be049);                         // mrs x9, cntvct_el0
+        buf.putInt(0xcb130129);                         // sub x9, x9, x19
+        emitAddress(buf, 10, data);
+
+        // Maximum is updated without atomics: a lost update is of no concern
+        buf.putInt(0xf940054b);                         // ldr x11, [x10, #8]
+        buf.putInt(0xeb0b013f);                         // cmp x9, x11
+        buf.putInt(0x54000049);                         // b.ls +8
+        buf.putInt(0xf9000549);                         // str x9, [x10, #8]
+
+        emitAddress(buf, 11, threshold);
+        buf.putInt(0xeb0b013f);                         // cmp x9, x11
+        buf.putInt(0x540000a9);                         // b.ls +20
+        buf.putInt(0xc85f7d4c);                         // ldxr x12, [x10]
+        buf.putInt(0x9100058c);                         // add x12, x12, #1
+        buf.putInt(0xc80d7d4c);                         // stxr w13, x12, [x10]
+        buf.putInt(0x35ffffad);                         // cbnz w13, -12
+
+        // Bucket: ticks below 16 exactly, then 8 linear sub-buckets per power of 2
+        buf.putInt(0xf100413f);                         // cmp x9, #16
+        buf.putInt(0x54000123);                         // b.lo +36
+        buf.putInt(0xdac0112d);                         // clz x13, x9
+        buf.putInt(0xd280078e);                         // mov x14, #60
+        buf.putInt(0xcb0d01cd);                         // sub x13, x14, x13
+        buf.putInt(0x9acd252c);                         // lsr x12, x9, x13
+        buf.putInt(0x9240098c);                         // and x12, x12, #7
+        buf.putInt(0x8b0d0d8c);                         // add x12, x12, x13, lsl #3
+        buf.putInt(0x9100218c);                         // add x12, x12, #8
+        buf.putInt(0x14000002);                         // b +8
+        buf.putInt(0xaa0903ec);                         // mov x12, x9
+        buf.putInt(0x9101014a);                         // add x10, x10, #64
+        buf.putInt(0x8b0c0d4a);                         // add x10, x10, x12, lsl #3
+        buf.putInt(0xc85f7d4c);                         // ldxr x12, [x10]
+        buf.putInt(0x9100058c);                         // add x12, x12, #1
+        buf.putInt(0xc80d7d4c);                         // stxr w13, x12, [x10]
+        buf.putInt(0x35ffffad);                         // cbnz w13, -12
+
+        buf.putInt(0xaa1403e0);                         // mov x0, x20
+        buf.putInt(0xaa1503e1);                         // mov x1, x21
+        buf.putInt(0xa97f53b3);                         // ldp x19, x20, [x29, #-16]
+        buf.putInt(0xa97e5bb5);                         // ldp x21, x22, [x29, #-32]
+        leaveFrame(buf);
+    }
+
+    @Override
+    void emitBatchStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, boolean output, long address) {
+        Class<?>[] argTypes = batchArgTypes(types, output);
+        int[] nativeOffsets = stackOffsets(argTypes);
+        if (nativeOffsets[argTypes.length] != 0) {
+            throw new IllegalArgumentException("@Batch function arguments must fit in registers");
+        }
+
+        // [sp] holds the remaining count, followed by pointers to the current array elements
+        int arrays = types.length - 1;
+        enterFrame(buf, 8 + arrays * 8);
+
+        int[] locations = javaLocations(types);
+        for (int i = 0; i <= arrays; i++) {
+            int src = 9;
+            if (locations[i] >= 0) {
+                src = javaIntArg(locations[i]);
+            } else {
+                buf.putInt(0xf94003a9 | imm12(2 + (-1 - locations[i])) << 10);  // ldr x9, [x29, #16+slot*8]
+            }
+
+            if (i < arrays) {
+                buf.putInt(0x91000009 | src << 5 | imm12(arrayBaseOffset(types[i])) << 10);  // add x9, x1, #base
+                buf.putInt(0xf90003e9 | imm12(i + 1) << 10);                               // str x9, [sp, #8+i*8]
+            } else {
+                buf.putInt(0x93407c09 | src << 5);       // sxtw x9, w1
+                buf.putInt(0xf90003e9);                  // str x9, [sp]
+            }
+        }
+
+        int loop = buf.position();
+        buf.putInt(0xf94003e9);                          // ldr x9, [sp]
+        buf.putInt(0xf1000529);                          // subs x9, x9, #1
+        buf.putInt(0xf90003e9);                          // str x9, [sp]
+        int done = buf.position();
+        buf.putInt(0);                                   // b.mi done
+
+        int index = 0;
+        int fpIndex = 0;
+        for (int i = 0; i < argTypes.length; i++) {
+            Class<?> type = argTypes[i];
+            int reg = isFloatingPoint(type) ? fpIndex++ : index++;
+            buf.putInt(0xf94003e9 | imm12(i + 1) << 10); // ldr x9, [sp, #8+i*8]
+            buf.putInt(loadElement(type) | 9 << 5 | reg);
+            buf.putInt(0x91000129 | imm12(JavaKind.fromJavaClass(type).getByteCount()) << 10);  // add x9, x9, #size
+            buf.putInt(0xf90003e9 | imm12(i + 1) << 10); // str x9, [sp, #8+i*8]
+        }
+        emitLinkedCall(buf, sites, address);
+
+        if (output) {
+            Class<?> resultType = types[arrays - 1].getComponentType();
+            buf.putInt(0xf94003e9 | imm12(arrays) << 10);  // ldr x9, [sp, #arrays*8]
+            buf.putInt(storeElement(resultType) | 9 << 5);
+            buf.putInt(0x91000129 | imm12(JavaKind.fromJavaClass(resultType).getByteCount()) << 10);  // add x9, x9, #size
+            buf.putInt(0xf90003e9 | imm12(arrays) << 10);  // str x9, [sp, #arrays*8]
+        }
+        buf.putInt(0x14000000 | ((loop - buf.position()) / 4 & 0x3ffffff));  // b loop
+
+        buf.putInt(done, 0x54000004 | (buf.position() - done) / 4 << 5);
+        leaveFrame(buf);
+    }
+
+    // Load instruction that extends an array element to an argument register
+    private static int loadElement(Class<?> type) {
+        if (type == boolean.class) {
+            return 0x39400000;  // ldrb w0, [x0]
+        } else if (type == byte.class) {
+            return 0x39c00000;  // ldrsb w0, [x0]
+        } else if (type == char.class) {
+            return 0x79400000;  // ldrh w0, [x0]
+        } else if (type == short.class) {
+            return 0x79c00000;  // ldrsh w0, [x0]
+        } else if (type == int.class) {
+            return 0xb9400000;  // ldr w0, [x0]
+        } else if (type == long.class) {
+            return 0xf9400000;  // ldr x0, [x0]
+        } else if (type == float.class) {
+            return 0xbd400000;  // ldr s0, [x0]
+        }
+        return 0xfd400000;      // ldr d0, [x0]
+    }
+
+    // Store instruction for the result of a native function in x0 or v0
+    private static int storeElement(Class<?> type) {
+        if (type == boolean.class || type == byte.class) {
+            return 0x39000000;  // strb w0, [x0]
+        } else if (type == char.class || type == short.class) {
+            return 0x79000000;  // strh w0, [x0]
+        } else if (type == int.class) {
+            return 0xb9000000;  // str w0, [x0]
+        } else if (type == long.class) {
+            return 0xf9000000;  // str x0, [x0]
+        } else if (type == float.class) {
+            return 0xbd000000;  // str s0, [x0]
+        }
+        return 0xfd000000;      // str d0, [x0]
+    }
+
+    // Sets up a frame with at least the given size of the local area
+    private static void enterFrame(ByteBuffer buf, int size) {
+        int frameSize = (size + 15) & ~15;
+        buf.putInt(0xa9bf7bfd);                  // stp x29, x30, [sp, #-16]!
+        buf.putInt(0x910003fd);                  // mov x29, sp
+        buf.putInt(0xd10003ff | imm12(frameSize) << 10);  // sub sp, sp, #frameSize
+    }
+
+    private static void leaveFrame(ByteBuffer buf) {
+        buf.putInt(0x910003bf);                  // mov sp, x29
+        buf.putInt(0xa8c17bfd);                  // ldp x29, x30, [sp], #16
+        buf.putInt(0xd65f03c0);                  // ret
+    }
+
+    @Override
+    int javaIntRegisters() {
+        return 8;
+    }
+
+    @Override
+    void emitMoveJavaArg(ByteBuffer buf, int dst, int src) {
+        if (src >= 0 && dst >= 0) {
+            buf.putInt(0xaa0003e0 | javaIntArg(dst) | javaIntArg(src) << 16);  // mov x0, x1
+        } else if (src >= 0) {
+            buf.putInt(0xf90003e0 | javaIntArg(src) | imm12(-1 - dst) << 10);  // str x0, [sp, #slot*8]
+        } else if (dst >= 0) {
+            buf.putInt(0xf94003e0 | javaIntArg(dst) | imm12(-1 - src) << 10);  // ldr x0, [sp, #slot*8]
+        } else {
+            buf.putInt(0xf94003e9 | imm12(-1 - src) << 10);  // ldr x9, [sp, #slot*8]
+            buf.putInt(0xf90003e9 | imm12(-1 - dst) << 10);  // str x9, [sp, #slot*8]
+        }
+    }
+
+    @Override
+    void emitElementAddress(ByteBuffer buf, int array, int index, int base, int shift) {
+        int indexReg = 10;
+        if (index >= 0) {
+            indexReg = javaIntArg(index);
+        } else {
+            buf.putInt(0xb94003ea | imm12((-1 - index) * 2) << 10);  // ldr w10, [sp, #slot*8]
+        }
+
+        int reg = 9;
+        if (array >= 0) {
+            reg = javaIntArg(array);
+        } else {
+            buf.putInt(0xf94003e9 | imm12(-1 - array) << 10);  // ldr x9, [sp, #slot*8]
+        }
+
+        buf.putInt(0x8b20c000 | reg | reg << 5 | shift << 10 | indexReg << 16);  // add x0, x0, w1, sxtw #shift
+        buf.putInt(0x91000000 | reg | reg << 5 | imm12(base) << 10);              // add x0, x0, #base
+
+        if (array < 0) {
+            buf.putInt(0xf90003e9 | imm12(-1 - array) << 10);  // str x9, [sp, #slot*8]
+        }
+    }
+
+    @Override
+    void emitLoadAddress(ByteBuffer buf, int location, int addressOffset, int positionOffset, int heapOffset) {
+        int reg = location >= 0 ? javaIntArg(location) : 9;
+        if (location < 0) {
+            buf.putInt(0xf94003e9 | imm12(-1 - location) << 10);  // ldr x9, [sp, #slot*8]
+        }
+
+        int isNull = buf.position();
+        buf.putInt(0);  // cbz x0, isNull
+
+        if (heapOffset >= 0) {
+            if (VMStructs.useCompressedOops) {
+                buf.putInt(0xb940000b | reg << 5 | imm12(heapOffset / 4) << 10);  // ldr w11, [x0, #hb]
+            } else {
+                buf.putInt(0xf940000b | reg << 5 | imm12(heapOffset / 8) << 10);  // ldr x11, [x0, #hb]
+            }
+        }
+        if (positionOffset >= 0) {
+            buf.putInt(0xb980000a | reg << 5 | imm12(positionOffset / 4) << 10);     // ldrsw x10, [x0, #position]
+            buf.putInt(0xf9400000 | reg | reg << 5 | imm12(addressOffset / 8) << 10);  // ldr x0, [x0, #address]
+            buf.putInt(0x8b0a0000 | reg | reg << 5);                                 // add x0, x0, x10
+        } else {
+            buf.putInt(0xf9400000 | reg | reg << 5 | imm12(addressOffset / 8) << 10);  // ldr x0, [x0, #address]
+        }
+        if (heapOffset >= 0) {
+            // Heap ByteBuffer has no native address
+            buf.putInt(VMStructs.useCompressedOops ? 0x3400004b : 0xb400004b);  // cbz w11/x11, +8
+            buf.putInt(0xaa1f03e0 | reg);                                        // mov x0, xzr
+        }
+
+        buf.putInt(isNull, 0xb4000000 | (buf.position() - isNull) << 3 | reg);
+
+        if (location < 0) {
+            buf.putInt(0xf90003e9 | imm12(-1 - location) << 10);  // str x9, [sp, #slot*8]
+        }
+    }
+
+    @Override
+    void emitStringValue(ByteBuffer buf, int location, int lengthLocation, int coderLocation) {
+        // x9 is needed for the heap base, so a stack argument is loaded to x11
+        int reg = location >= 0 ? javaIntArg(location) : 11;
+        if (location < 0) {
+            buf.putInt(0xf94003eb | imm12(-1 - location) << 10);  // ldr x11, [sp, #slot*8]
+        }
+        if (lengthLocation != NO_LOCATION) {
+            storeIntArg(buf, lengthLocation, 31);
+        }
+        if (coderLocation != NO_LOCATION) {
+            storeIntArg(buf, coderLocation, 31);
+        }
+
+        int isNull = buf.position();
+        buf.putInt(0);  // cbz x0, isNull
+
+        buf.putInt(0x3940000a | reg << 5 | imm12(fieldOffset(String.class, "coder")) << 10);  // ldrb w10, [x0, #coder]
+        int utf16 = -1;
+        if (coderLocation != NO_LOCATION) {
+            storeIntArg(buf, coderLocation, 10);
+        } else {
+            utf16 = buf.position();
+            buf.putInt(0);  // cbnz w10, utf16
+        }
+
+        int valueOffset = fieldOffset(String.class, "value");
+        if (VMStructs.useCompressedOops) {
+            buf.putInt(0xb9400000 | reg | reg << 5 | imm12(valueOffset / 4) << 10);  // ldr w0, [x0, #value]
+            int shift = VMStructs.narrowOopShift;
+            if (VMStructs.narrowOopBase != 0 && shift <= 4) {
+                emitAddress(buf, VMStructs.narrowOopBase);  // mov x9, base
+                buf.putInt(0x8b204120 | reg | reg << 16 | shift << 10);  // add x0, x9, w0, uxtw #shift
+            } else {
+                // Extended register add encodes shifts up to 4 only, e.g. not for ObjectAlignmentInBytes=32
+                if (shift != 0) {
+                    buf.putInt(0xd3400000 | reg | reg << 5 | ((64 - shift) & 63) << 16 | (63 - shift) << 10);  // lsl x0, x0, #shift
+                }
+                if (VMStructs.narrowOopBase != 0) {
+                    emitAddress(buf, VMStructs.narrowOopBase);  // mov x9, base
+                    buf.putInt(0x8b090000 | reg | reg << 5);    // add x0, x0, x9
+                }
+            }
+        } else {
+            buf.putInt(0xf9400000 | reg | reg << 5 | imm12(valueOffset / 8) << 10);  // ldr x0, [x0, #value]
+        }
+
+        if (lengthLocation != NO_LOCATION) {
+            buf.putInt(0xb940000a | reg << 5 | imm12(VMStructs.arrayLengthOffset / 4) << 10);  // ldr w10, [x0, #length]
+            storeIntArg(buf, lengthLocation, 10);
+        }
+        buf.putInt(0x91000000 | reg | reg << 5 | imm12(arrayBaseOffset(byte[].class)) << 10);  // add x0, x0, #base
+
+        if (utf16 >= 0) {
+            // Without the coder, native code cannot tell UTF-16 bytes from LATIN1
+            buf.putInt(0x14000002);                                                // b +8
+            buf.putInt(utf16, 0x3500000a | (buf.position() - utf16) / 4 << 5);     // cbnz w10, utf16
+            buf.putInt(0xaa1f03e0 | reg);                                          // mov x0, xzr
+        }
+        buf.putInt(isNull, 0xb4000000 | (buf.position() - isNull) / 4 << 5 | reg);
+
+        if (location < 0) {
+            buf.putInt(0xf90003eb | imm12(-1 - location) << 10);  // str x11, [sp, #slot*8]
+        }
+    }
+
+    // Moves the register (31 = zero) to the int argument at the given location
+    private static void storeIntArg(ByteBuffer buf, int location, int reg) {
+        if (location >= 0) {
+            buf.putInt(0x2a0003e0 | javaIntArg(location) | reg << 16);  // mov w0, w10
+        } else {
+            buf.putInt(0xb90003e0 | reg | imm12((-1 - location) * 2) << 10);  // str w10, [sp, #slot*8]
+        }
+    }
+
+    // Register of the given integer argument of a Java method
+    private static int javaIntArg(int index) {
+        return (index + 1) & 7;
+    }
+
+    // Copies Java stack arguments to the outgoing area at the given offsets
+    private void copyStackArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations, int[] nativeOffsets) {
+        int stackSlot = 0;
+        for (int i = 0; i < types.length; i++) {
+            int offset = nativeOffsets[i];
+            if (offset < 0) {
+                continue;
+            }
+
+            Class<?> type = types[i];
+            buf.putInt(0xf94003a9 | imm12(2 + stackSlot++) << 10);  // ldr x9, [x29, #16+slot*8]
+            if (!type.isPrimitive()) {
+                buf.putInt(0x91000129 | imm12(baseOffset(type, annotations[i])) << 10);    // add x9, x9, #offset
+            }
+
+            int size = apple ? stackSize(type) : 8;
+            int store = size == 8 ? 0xf9000000 : size == 4 ? 0xb9000000 : size == 2 ? 0x79000000 : 0x39000000;
+            buf.putInt(store | imm12(offset / size) << 10 | 31 << 5 | 9);  // str x9, [sp, #offset]
+        }
+    }
+
+    private void moveRegisterArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations, boolean tail) {
         if (types.length >= 8) {
             // 8th Java argument clashes with the 1st native arg
             buf.putInt(0xaa0003e8);  // mov x8, x0
         }
 
         int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
         for (int i = 0; i < types.length; i++) {
             Class<?> type = types[i];
-            if (type.isPrimitive()) {
-                if (index < 8 && type != float.class && type != double.class) {
-                    // mov x0, x1
-                    buf.putInt((type == long.class ? 0xaa0003e0 : 0x2a0003e0) | index | (index + 1) << 16);
-                    index++;
+            if (isFloatingPoint(type)) {
+                // Already in place
+                if (fpIndex++ >= 8) stackSlot++;
+            } else if (index >= 8) {
+                // In a tail call, stack arguments stay where they are.
+                // Objects are adjusted in place, since the slot belongs to the callee
+                if (tail && !type.isPrimitive()) {
+                    int slot = imm12(stackSlot);
+                    buf.putInt(0xf94003e9 | slot << 10);  // ldr x9, [sp, #slot*8]
+                    buf.putInt(0x91000129 | imm12(baseOffset(type, annotations[i])) << 10);  // add x9, x9, #offset
+                    buf.putInt(0xf90003e9 | slot << 10);  // str x9, [sp, #slot*8]
                 }
-            } else if (index < 8) {
+                stackSlot++;
+            } else if (type.isPrimitive()) {
+                // mov x0, x1
+                buf.putInt((type == long.class ? 0xaa0003e0 : 0x2a0003e0) | index | (index + 1) << 16);
+                index++;
+            } else {
                 // add x0, x1, #offset
-                buf.putInt(0x91000000 | index | (index + 1) << 5 | baseOffset(type, annotations[i]) << 10);
+                buf.putInt(0x91000000 | index | (index + 1) << 5 | imm12(baseOffset(type, annotations[i])) << 10);
                 index++;
+            }
+        }
+    }
+
+    // Returns offsets of native stack arguments (-1 for register arguments) followed by
+    // the total size of the stack area, or null if the layout is the same as in Java
+    private int[] packedStackOffsets(Class<?>[] types) {
+        int[] offsets = stackOffsets(types);
+        for (int i = 0; i < types.length; i++) {
+            if (offsets[i] >= 0 && stackSize(types[i]) < 8) {
+                return offsets;
+            }
+        }
+        return null;
+    }
+
+    // Native stack arguments occupy 8-byte slots, or are packed on Apple platforms
+    private int[] stackOffsets(Class<?>[] types) {
+        int[] offsets = new int[types.length + 1];
+        int index = 0;
+        int fpIndex = 0;
+        int offset = 0;
+
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i];
+            if (isFloatingPoint(type) ? fpIndex++ < 8 : index++ < 8) {
+                offsets[i] = -1;
             } else {
-                throw new IllegalArgumentException("Too many object arguments");
+                int size = apple ? stackSize(type) : 8;
+                offsets[i] = offset = (offset + size - 1) & -size;
+                offset += size;
             }
         }
+
+        offsets[types.length] = offset;
+        return offsets;
+    }
+
+    private static int stackSize(Class<?> type) {
+        if (type == boolean.class || type == byte.class) {
+            return 1;
+        } else if (type == char.class || type == short.class) {
+            return 2;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        }
+        return 8;
+    }
+
+    private static int imm12(int value) {
+        if (value < 0 || value > 4095) {
+            throw new IllegalArgumentException("Not in the imm12 range: " + value);
+        }
+        return value;
     }
 
     @Override
     public void emitCall(ByteBuffer buf, long address) {
+        emitAddress(buf, address);
+        buf.putInt(0xd61f0120);                         // br x9
+    }
+
+    @Override
+    void emitIndirectCall(ByteBuffer buf, long address) {
+        emitAddress(buf, address);
+        buf.putInt(0xd63f0120);                         // blr x9
+    }
+
+    @Override
+    long branchRange() {
+        return 128 * 1024 * 1024 - 4;
+    }
+
+    @Override
+    void emitBranch(ByteBuffer buf, boolean link) {
+        buf.putInt(link ? 0x94000000 : 0x14000000);     // bl/b .
+    }
+
+    private static void emitAddress(ByteBuffer buf, long address) {
+        emitAddress(buf, 9, address);
+    }
+
+    private static void emitAddress(ByteBuffer buf, int reg, long address) {
         int a0 = (int) address & 0xffff;
         int a1 = (int) (address >>> 16) & 0xffff;
         int a2 = (int) (address >>> 32) & 0xffff;
         int a3 = (int) (address >>> 48);
 
-        buf.putInt(0xd2800009 | a0 << 5);               // movz x9, #0xffff
-        if (a1 != 0) buf.putInt(0xf2a00009 | a1 << 5);  // movk x9, #0xffff, lsl #16
-        if (a2 != 0) buf.putInt(0xf2c00009 | a2 << 5);  // movk x9, #0xffff, lsl #32
-        if (a3 != 0) buf.putInt(0xf2e00009 | a3 << 5);  // movk x9, #0xffff, lsl #48
-
-        buf.putInt(0xd61f0120);                         // br x9
+        buf.putInt(0xd2800000 | a0 << 5 | reg);               // movz x9, #0xffff
+        if (a1 != 0) buf.putInt(0xf2a00000 | a1 << 5 | reg);  // movk x9, #0xffff, lsl #16
+        if (a2 != 0) buf.putInt(0xf2c00000 | a2 << 5 | reg);  // movk x9, #0xffff, lsl #32
+        if (a3 != 0) buf.putInt(0xf2e00000 | a3 << 5 | reg);  // movk x9, #0xffff, lsl #48
     }
 }
@@ -0,0 +1,1041 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import jdk.vm.ci.code.site.Site;
+import jdk.vm.ci.meta.JavaKind;
+import jdk.vm.ci.meta.ResolvedJavaField;
+
+import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+abstract class AMD64CallingConvention extends CallingConvention {
+
+    // General purpose registers in the order of their encoding
+    static final int RAX = 0, RCX = 1, RDX = 2, RBX = 3, RSP = 4, RBP = 5, RSI = 6, RDI = 7;
+    static final int R8 = 8, R9 = 9, R10 = 10, R11 = 11, R12 = 12, R13 = 13, R14 = 14, R15 = 15;
+
+    @Override
+    public void emitCall(ByteBuffer buf, long address) {
+        buf.putShort((short) 0xb848).putLong(address);  // mov rax, address
+        buf.putShort((short) 0xe0ff);                   // jmp rax
+    }
+
+    @Override
+    void emitIndirectCall(ByteBuffer buf, long address) {
+        buf.putShort((short) 0xb848).putLong(address);  // mov rax, address
+        buf.putShort((short) 0xd0ff);                   // call rax
+    }
+
+    @Override
+    long branchRange() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    void emitBranch(ByteBuffer buf, boolean link) {
+        buf.put((byte) (link ? 0xe8 : 0xe9)).putInt(0);  // call/jmp rel32
+    }
+
+    @Override
+    void emitCounter(ByteBuffer buf, long counters) {
+        buf.put((byte) 0x4d).putShort((short) 0xd769).putInt(0x9e3779b1);  // imul r10, r15, 0x9e3779b1
+        buf.putInt(0x16eac149);                                             // shr r10, 22
+        buf.put((byte) 0x41).putShort((short) 0xe281).putInt(0x3c0);       // and r10d, 0x3c0
+        movabs(buf, R11, counters);
+        buf.putInt(0x04834bf0).putShort((short) 0x0113);                    // lock add qword [r11+r10], 1
+    }
+
+    // Size of the area the caller reserves below stack arguments
+    int shadowSpace() {
+        return 0;
+    }
+
+    @Override
+    void emitTimingWrapper(ByteBuffer buf, List<Site> sites, long address, long data, long threshold, int stackSlots) {
+        int shadow = shadowSpace();
+        enterFrame(buf, (shadow + stackSlots * 8 + 24 + 15) & ~15);
+        storeq(buf, RBP, -8, RBX);
+        storeq(buf, RBP, -16, R12);
+        storeq(buf, RBP, -24, R13);
+        for (int i = 0; i < stackSlots; i++) {
+            loadq(buf, R11, RBP, 16 + shadow + i * 8);
+            storeq(buf, RSP, shadow + i * 8, R11);
+        }
+
+        movq(buf, R12, RDX);                                     // rdtsc overwrites an argument register
+        readTsc(buf);
+        movq(buf, RBX, RAX);
+        movq(buf, RDX, R12);
+        emitLinkedCall(buf, sites, address);
+        movq(buf, R12, RAX);
+        movq(buf, R13, RDX);
+
+        readTsc(buf);
+        buf.put((byte) 0x48).putShort((short) 0xd829);          // sub rax, rbx
+        buf.put((byte) 0x48).putShort((short) 0xc085);          // test rax, rax
+        buf.putShort((short) 0x0279);                           // jns +2
+        buf.putShort((short) 0xc031);                           // xor eax, eax
+        movabs(buf, R11, data);
+
+        // Maximum is updated without atomics: a lost update is of no concern
+        cmpq(buf, RAX, R11, 8);
+        buf.putShort((short) 0x0476);                           // jbe +4
+        storeq(buf, R11, 8, RAX);
+
+        movabs(buf, R10, threshold);
+        buf.put((byte) 0x4c).putShort((short) 0xd039);          // cmp rax, r10
+        buf.putShort((short) 0x0576);                           // jbe +5
+        buf.putInt(0x038349f0).put((byte) 0x01);                // lock add qword [r11], 1
+
+        // Bucket: ticks below 16 exactly, then 8 linear sub-buckets per power of 2
+        buf.putInt(0x10f88348);                                // cmp rax, 16
+        buf.putShort((short) 0x1272);                           // jb +18
+        buf.putInt(0xc8bd0f48);                                // bsr rcx, rax
+        buf.put((byte) 0x83).putShort((short) 0x03e9);          // sub ecx, 3
+        buf.put((byte) 0x48).putShort((short) 0xe8d3);          // shr rax, cl
+        buf.put((byte) 0x83).putShort((short) 0x07e0);          // and eax, 7
+        buf.putInt(0xc8448d48).put((byte) 0x08);                // lea rax, [rax+rcx*8+8]
+        buf.put((byte) 0xf0).putInt(0xc3448349).putShort((short) 0x0140);  // lock add qword [r11+rax*8+64], 1
+
+        movq(buf, RAX, R12);
+        movq(buf, RDX, R13);
+        loadq(buf, RBX, RBP, -8);
+        loadq(buf, R12, RBP, -16);
+        loadq(buf, R13, RBP, -24);
+        buf.put((byte) 0xc9);                                   // leave
+        buf.put((byte) 0xc3);                                   // ret
+    }
+
+    // rdtsc; shl rdx, 32; or rax, rdx
+    private static void readTsc(ByteBuffer buf) {
+        buf.putShort((short) 0x310f);
+        buf.putInt(0x20e2c148);
+        buf.put((byte) 0x48).putShort((short) 0xd009);
+    }
+
+    @Override
+    int javaIntRegisters() {
+        return 6;
+    }
+
+    @Override
+    void emitMoveJavaArg(ByteBuffer buf, int dst, int src) {
+        if (src >= 0 && dst >= 0) {
+            movq(buf, javaIntArg(dst), javaIntArg(src));
+        } else if (src >= 0) {
+            storeq(buf, RSP, stackArg(dst), javaIntArg(src));
+        } else if (dst >= 0) {
+            loadq(buf, javaIntArg(dst), RSP, stackArg(src));
+        } else {
+            loadq(buf, R10, RSP, stackArg(src));
+            storeq(buf, RSP, stackArg(dst), R10);
+        }
+    }
+
+    @Override
+    void emitElementAddress(ByteBuffer buf, int array, int index, int base, int shift) {
+        if (index >= 0) {
+            movsxd(buf, R10, javaIntArg(index));
+        } else {
+            movsxd(buf, R10, RSP, stackArg(index));
+        }
+
+        if (array >= 0) {
+            int reg = javaIntArg(array);
+            lea(buf, reg, reg, R10, shift, base);
+        } else {
+            loadq(buf, R11, RSP, stackArg(array));
+            lea(buf, R11, R11, R10, shift, base);
+            storeq(buf, RSP, stackArg(array), R11);
+        }
+    }
+
+    @Override
+    void emitLoadAddress(ByteBuffer buf, int location, int addressOffset, int positionOffset, int heapOffset) {
+        int reg = location >= 0 ? javaIntArg(location) : R11;
+        if (location < 0) {
+            loadq(buf, R11, RSP, stackArg(location));
+        }
+
+        testq(buf, reg);
+        int isNull = jcc(buf, 0x84);                    // jz isNull
+
+        // Loads and lea below keep the flags of this comparison
+        if (heapOffset >= 0) {
+            cmpNull(buf, reg, heapOffset);
+        }
+        if (positionOffset >= 0) {
+            movsxd(buf, R10, reg, positionOffset);
+            loadq(buf, reg, reg, addressOffset);
+            lea(buf, reg, reg, R10, 0, 0);
+        } else {
+            loadq(buf, reg, reg, addressOffset);
+        }
+        if (heapOffset >= 0) {
+            int direct = jcc(buf, 0x84);                // jz direct
+            xorl(buf, reg);
+            bind(buf, direct);
+        }
+        bind(buf, isNull);
+
+        if (location < 0) {
+            storeq(buf, RSP, stackArg(location), R11);
+        }
+    }
+
+    @Override
+    void emitStringValue(ByteBuffer buf, int location, int lengthLocation, int coderLocation) {
+        int reg = location >= 0 ? javaIntArg(location) : R11;
+        if (location < 0) {
+            loadq(buf, R11, RSP, stackArg(location));
+        }
+        if (lengthLocation != NO_LOCATION) {
+            storeIntArg(buf, lengthLocation, -1);
+        }
+        if (coderLocation != NO_LOCATION) {
+            storeIntArg(buf, coderLocation, -1);
+        }
+
+        testq(buf, reg);
+        int isNull = jcc(buf, 0x84);                    // jz isNull
+
+        movzbl(buf, R10, reg, fieldOffset(String.class, "coder"));
+        int utf16 = -1;
+        if (coderLocation != NO_LOCATION) {
+            storeIntArg(buf, coderLocation, R10);
+        } else {
+            testq(buf, R10);
+            utf16 = jcc(buf, 0x85);                     // jnz utf16
+        }
+
+        int valueOffset = fieldOffset(String.class, "value");
+        if (VMStructs.useCompressedOops) {
+            loadl(buf, reg, reg, valueOffset);
+            // Shift may exceed the SIB scale, e.g. with 16-byte object alignment
+            if (VMStructs.narrowOopShift != 0) {
+                shlq(buf, reg, VMStructs.narrowOopShift);
+            }
+            if (VMStructs.narrowOopBase != 0) {
+                movabs(buf, R10, VMStructs.narrowOopBase);
+                lea(buf, reg, reg, R10, 0, 0);
+            }
+        } else {
+            loadq(buf, reg, reg, valueOffset);
+        }
+
+        if (lengthLocation != NO_LOCATION) {
+            loadl(buf, R10, reg, VMStructs.arrayLengthOffset);
+            storeIntArg(buf, lengthLocation, R10);
+        }
+        lea(buf, reg, reg, arrayBaseOffset(byte[].class));
+
+        if (utf16 >= 0) {
+            // Without the coder, native code cannot tell UTF-16 bytes from LATIN1
+            buf.put((byte) 0xe9).putInt(0);             // jmp isNull
+            int done = buf.position();
+            bind(buf, utf16);
+            xorl(buf, reg);
+            bind(buf, done);
+        }
+        bind(buf, isNull);
+
+        if (location < 0) {
+            storeq(buf, RSP, stackArg(location), R11);
+        }
+    }
+
+    // Stores the register to the int argument at the given location, or zero if reg < 0
+    private void storeIntArg(ByteBuffer buf, int location, int reg) {
+        if (location >= 0) {
+            if (reg < 0) {
+                xorl(buf, javaIntArg(location));
+            } else {
+                movl(buf, javaIntArg(location), reg);
+            }
+        } else {
+            if (reg < 0) {
+                storeImm(buf, RSP, stackArg(location), 0);
+            } else {
+                storel(buf, RSP, stackArg(location), reg);
+            }
+        }
+    }
+
+    // Offset of the Java stack argument at the given location relative to rsp on entry
+    private static int stackArg(int location) {
+        return 8 + (-1 - location) * 8;
+    }
+
+    // Size of the outgoing area needed to call a native function with the given arguments
+    abstract int outgoingAreaSize(Class<?>[] types);
+
+    // Fills the outgoing area of the frame set up by enterFrame and moves register arguments
+    abstract void emitFramedArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations);
+
+    // Register for the given integer argument of a native function
+    abstract int nativeIntArg(int index);
+
+    // Register for the given integer argument of a Java method
+    abstract int javaIntArg(int index);
+
+    // Loads the error code of the last native call into eax
+    abstract void emitLoadLastError(ByteBuffer buf, List<Site> sites);
+
+    @Override
+    void emitLastErrorStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int count = types.length - 1;
+        Class<?>[] nativeTypes = Arrays.copyOf(types, count);
+        Annotation[][] nativeAnnotations = Arrays.copyOf(annotations, count);
+
+        // [rbp-8] holds the array for the error code, [rbp-16] and [rbp-24] save the result
+        enterFrame(buf, (outgoingAreaSize(nativeTypes) + 24 + 15) & ~15);
+
+        saveLastArg(buf, types, -8);
+        emitFramedArgs(buf, nativeTypes, nativeAnnotations);
+        emitLinkedCall(buf, sites, address);
+
+        storeq(buf, RBP, -16, RAX);
+        storesd(buf, RBP, -24, 0);
+        emitLoadLastError(buf, sites);
+
+        loadq(buf, R10, RBP, -8);
+        testq(buf, R10);
+        int isNull = jcc(buf, 0x84);                    // jz isNull
+        storel(buf, R10, arrayBaseOffset(int[].class), RAX);
+        bind(buf, isNull);
+
+        loadq(buf, RAX, RBP, -16);
+        loadsd(buf, 0, RBP, -24);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    @Override
+    void emitReturnStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int count = types.length - 1;
+        Class<?>[] nativeTypes = Arrays.copyOf(types, count);
+        Annotation[][] nativeAnnotations = Arrays.copyOf(annotations, count);
+        ResolvedJavaField[] fields = returnFields(types[count], annotations[count]);
+
+        // [rbp-8] holds the object that receives return values
+        enterFrame(buf, (outgoingAreaSize(nativeTypes) + 8 + 15) & ~15);
+        saveLastArg(buf, types, -8);
+        emitFramedArgs(buf, nativeTypes, nativeAnnotations);
+        emitLinkedCall(buf, sites, address);
+
+        loadq(buf, R10, RBP, -8);
+        testq(buf, R10);
+        int isNull = jcc(buf, 0x84);                    // jz isNull
+        for (int i = 0; i < fields.length; i++) {
+            int src = i == 0 ? RAX : RDX;
+            if (fields[i].getJavaKind() == JavaKind.Long) {
+                storeq(buf, R10, fields[i].getOffset(), src);
+            } else {
+                storel(buf, R10, fields[i].getOffset(), src);
+            }
+        }
+        bind(buf, isNull);
+
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    @Override
+    void emitReturnOffsetStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        // [rbp-8] saves the first native argument
+        enterFrame(buf, (outgoingAreaSize(types) + 8 + 15) & ~15);
+        emitFramedArgs(buf, types, annotations);
+        storeq(buf, RBP, -8, nativeIntArg(0));
+        emitLinkedCall(buf, sites, address);
+
+        testq(buf, RAX);
+        int isNull = jcc(buf, 0x84);                    // jz isNull
+        subq(buf, RAX, RBP, -8);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+
+        bind(buf, isNull);
+        buf.putInt(0xffc88348);                         // or rax, -1
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    // Saves the last Java argument at [rbp+disp] of the frame set up by enterFrame
+    private void saveLastArg(ByteBuffer buf, Class<?>[] types, int disp) {
+        int intIndex = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
+        for (int i = 0; i < types.length - 1; i++) {
+            if (isFloatingPoint(types[i]) ? fpIndex++ >= 8 : intIndex++ >= 6) {
+                stackSlot++;
+            }
+        }
+        if (intIndex < 6) {
+            storeq(buf, RBP, disp, javaIntArg(intIndex));
+        } else {
+            loadq(buf, RAX, RBP, 16 + stackSlot * 8);
+            storeq(buf, RBP, disp, RAX);
+        }
+    }
+
+    // Register of the given native argument (xmm index for floating point types),
+    // or -1 if the argument is passed on the stack
+    abstract int nativeArgRegister(Class<?>[] types, int index);
+
+    @Override
+    void emitBatchStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, boolean output, long address) {
+        Class<?>[] argTypes = batchArgTypes(types, output);
+        int[] argRegs = new int[argTypes.length];
+        for (int i = 0; i < argTypes.length; i++) {
+            if ((argRegs[i] = nativeArgRegister(argTypes, i)) < 0) {
+                throw new IllegalArgumentException("@Batch function arguments must fit in registers");
+            }
+        }
+
+        // [rbp-8] holds the remaining count, followed by pointers to the current array elements
+        int arrays = types.length - 1;
+        enterFrame(buf, (outgoingAreaSize(argTypes) + 8 + arrays * 8 + 15) & ~15);
+
+        int[] locations = javaLocations(types);
+        for (int i = 0; i <= arrays; i++) {
+            int src = R10;
+            if (locations[i] >= 0) {
+                src = javaIntArg(locations[i]);
+            } else {
+                loadq(buf, R10, RBP, 16 + (-1 - locations[i]) * 8);
+            }
+
+            if (i < arrays) {
+                lea(buf, R10, src, arrayBaseOffset(types[i]));
+                storeq(buf, RBP, -16 - i * 8, R10);
+            } else {
+                movsxd(buf, R10, src);
+                storeq(buf, RBP, -8, R10);
+            }
+        }
+
+        int loop = buf.position();
+        addq(buf, RBP, -8, -1);
+        int done = jcc(buf, 0x88);                      // js done
+
+        for (int i = 0; i < argTypes.length; i++) {
+            loadq(buf, R10, RBP, -16 - i * 8);
+            loadElement(buf, argTypes[i], argRegs[i], R10);
+            addq(buf, RBP, -16 - i * 8, JavaKind.fromJavaClass(argTypes[i]).getByteCount());
+        }
+        emitLinkedCall(buf, sites, address);
+
+        if (output) {
+            Class<?> resultType = types[arrays - 1].getComponentType();
+            loadq(buf, R10, RBP, -8 - arrays * 8);
+            storeElement(buf, resultType, R10);
+            addq(buf, RBP, -8 - arrays * 8, JavaKind.fromJavaClass(resultType).getByteCount());
+        }
+        buf.put((byte) 0xe9).putInt(loop - (buf.position() + 4));  // jmp loop
+
+        bind(buf, done);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    // Loads an array element at [base] extended to a native argument register
+    private static void loadElement(ByteBuffer buf, Class<?> type, int reg, int base) {
+        if (type == boolean.class) {
+            movzbl(buf, reg, base, 0);
+        } else if (type == byte.class) {
+            movsbl(buf, reg, base, 0);
+        } else if (type == char.class) {
+            movzwl(buf, reg, base, 0);
+        } else if (type == short.class) {
+            movswl(buf, reg, base, 0);
+        } else if (type == int.class) {
+            loadl(buf, reg, base, 0);
+        } else if (type == long.class) {
+            loadq(buf, reg, base, 0);
+        } else if (type == float.class) {
+            loadss(buf, reg, base, 0);
+        } else {
+            loadsd(buf, reg, base, 0);
+        }
+    }
+
+    // Stores the result of a native function to an array element at [base]
+    private static void storeElement(ByteBuffer buf, Class<?> type, int base) {
+        if (type == boolean.class || type == byte.class) {
+            storeb(buf, base, 0, RAX);
+        } else if (type == char.class || type == short.class) {
+            storew(buf, base, 0, RAX);
+        } else if (type == int.class) {
+            storel(buf, base, 0, RAX);
+        } else if (type == long.class) {
+            storeq(buf, base, 0, RAX);
+        } else if (type == float.class) {
+            storess(buf, base, 0, 0);
+        } else {
+            storesd(buf, base, 0, 0);
+        }
+    }
+
+    // Stores native arguments of an upcall as an array of jvalues at [rsp+disp]
+    abstract void emitStoreNativeArgs(ByteBuffer buf, Class<?>[] types, int disp);
+
+    @Override
+    void emitUpcallStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Class<?> returnType, long methodId) {
+        int callStaticMethodA = JavaVM.callStaticMethodA(returnType);
+
+        // 32 bytes of outgoing area for Windows x64, then the array of jvalues.
+        // [rbp-8] receives JNIEnv, [rbp-16] and [rbp-24] save the result
+        enterFrame(buf, (32 + types.length * 8 + 24 + 15) & ~15);
+        emitStoreNativeArgs(buf, types, 32);
+
+        int env = nativeIntArg(0);
+        clearq(buf, RBP, -8);
+        movabs(buf, env, JavaVM.vm);
+        lea(buf, nativeIntArg(1), RBP, -8);
+        movImm(buf, nativeIntArg(2), JavaVM.JNI_VERSION_1_6);
+        emitLinkedCall(buf, sites, JavaVM.getEnv);
+
+        // JNIEnv is embedded in JavaThread, which must be in native
+        loadq(buf, env, RBP, -8);
+        testq(buf, env);
+        int noEnv = jcc(buf, 0x84);                     // jz noEnv
+        cmpl(buf, env, VMStructs.threadStateOffset - VMStructs.jniEnvOffset, VMStructs.THREAD_IN_NATIVE);
+        int notInNative = jcc(buf, 0x85);               // jne notInNative
+
+        loadq(buf, RAX, env, 0);
+        xorl(buf, nativeIntArg(1));
+        movabs(buf, nativeIntArg(2), methodId);
+        lea(buf, nativeIntArg(3), RSP, 32);
+        buf.putShort((short) 0x90ff).putInt(callStaticMethodA * 8);  // call [rax+index*8]: CallStatic<Type>MethodA(env, NULL, methodId, args)
+        storeq(buf, RBP, -16, RAX);
+        storesd(buf, RBP, -24, 0);
+
+        loadq(buf, env, RBP, -8);
+        loadq(buf, R10, env, VMStructs.pendingExceptionOffset - VMStructs.jniEnvOffset);
+        testq(buf, R10);
+        int noException = jcc(buf, 0x84);               // jz noException
+        loadq(buf, RAX, env, 0);
+        buf.putShort((short) 0x90ff).putInt(JavaVM.EXCEPTION_DESCRIBE * 8);  // call [rax+128]: ExceptionDescribe(env)
+        bind(buf, noException);
+
+        loadq(buf, RAX, RBP, -16);
+        loadsd(buf, 0, RBP, -24);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+
+        // Calling Java from a thread not in native would break stack walking
+        bind(buf, noEnv);
+        bind(buf, notInNative);
+        buf.putShort((short) 0x0b0f);                   // ud2
+    }
+
+    @Override
+    void emitFromReflectedMethod(ByteBuffer buf) {
+        movq(buf, nativeIntArg(1), nativeIntArg(2));
+        loadq(buf, RAX, nativeIntArg(0), 0);
+        buf.put((byte) 0xff).put((byte) 0x60).put((byte) (JavaVM.FROM_REFLECTED_METHOD * 8));  // jmp [rax+56]: FromReflectedMethod(env, method)
+    }
+
+    @Override
+    void emitRegisterNatives(ByteBuffer buf, List<Site> sites) {
+        // [rbp-8] receives JNIEnv, [rbp-16] and [rbp-24] save the arguments,
+        // then 32 bytes of outgoing area for Windows x64
+        enterFrame(buf, 64);
+        storeq(buf, RBP, -16, nativeIntArg(0));
+        storeq(buf, RBP, -24, nativeIntArg(1));
+
+        int env = nativeIntArg(0);
+        clearq(buf, RBP, -8);
+        movabs(buf, env, JavaVM.vm);
+        lea(buf, nativeIntArg(1), RBP, -8);
+        movImm(buf, nativeIntArg(2), JavaVM.JNI_VERSION_1_6);
+        emitLinkedCall(buf, sites, JavaVM.getEnv);
+
+        loadq(buf, env, RBP, -8);
+        loadq(buf, nativeIntArg(1), RBP, -16);
+        loadq(buf, RAX, env, 0);
+        buf.putShort((short) 0x50ff).put((byte) (JavaVM.FIND_CLASS * 8));  // call [rax+48]: FindClass(env, className)
+        testq(buf, RAX);
+        int noClass = jcc(buf, 0x84);                   // jz noClass
+
+        loadq(buf, env, RBP, -8);
+        movq(buf, nativeIntArg(1), RAX);
+        loadq(buf, nativeIntArg(2), RBP, -24);
+        movImm(buf, nativeIntArg(3), 1);
+        loadq(buf, RAX, env, 0);
+        buf.putShort((short) 0x90ff).putInt(JavaVM.REGISTER_NATIVES * 8);  // call [rax+1720]: RegisterNatives(env, cls, methods, 1)
+        movsxd(buf, RAX, RAX);
+        testq(buf, RAX);
+        int failed = jcc(buf, 0x85);                    // jnz failed
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+
+        bind(buf, noClass);
+        bind(buf, failed);
+        loadq(buf, env, RBP, -8);
+        loadq(buf, RAX, env, 0);
+        buf.putShort((short) 0x90ff).putInt(JavaVM.EXCEPTION_DESCRIBE * 8);  // call [rax+128]: ExceptionDescribe(env)
+        movImm(buf, RAX, -1);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    // Stores a native argument of an upcall from a register (xmm for floating point types)
+    protected static void storeNativeArg(ByteBuffer buf, Class<?> type, int disp, int reg) {
+        if (type == float.class) {
+            storess(buf, RSP, disp, reg);
+        } else if (type == double.class) {
+            storesd(buf, RSP, disp, reg);
+        } else {
+            storeq(buf, RSP, disp, reg);
+        }
+    }
+
+    // Calls the native function in the native thread state.
+    // The caller's frame becomes the last Java frame, so that the stack is walkable
+    // while the thread is in native. On return, if a safepoint or handshake is pending,
+    // the thread enters the VM through a cheap JNI function, which blocks as needed
+    @Override
+    void emitBlockingStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        checkPrimitive(types);
+
+        // Extra 16 bytes at [rbp-16] save the result while the thread is in the VM
+        enterFrame(buf, (outgoingAreaSize(types) + 16 + 15) & ~15);
+        enterNative(buf);
+
+        emitFramedArgs(buf, types, annotations);
+        emitLinkedCall(buf, sites, address);
+
+        int retry = buf.position();
+        int slowPath = leaveNative(buf);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+
+        bind(buf, slowPath);
+        emitNativeSlowPath(buf, retry);
+    }
+
+    @Override
+    boolean supportsLazyLinking() {
+        return true;
+    }
+
+    // The frame holds the blocking result at [rbp-16], six integer argument registers
+    // at [rbp-64], eight xmm registers at [rbp-128] and the Method* at [rbp-136].
+    // Arguments are primitives only, so the saved copies stay valid across a safepoint
+    @Override
+    void emitResolverStub(ByteBuffer buf, List<Site> sites, long resolve) {
+        enterFrame(buf, 144 + shadowSpace());
+        for (int i = 0; i < 6; i++) {
+            storeq(buf, RBP, -24 - i * 8, javaIntArg(i));
+        }
+        for (int i = 0; i < 8; i++) {
+            storesd(buf, RBP, -72 - i * 8, i);
+        }
+        storeq(buf, RBP, -136, RBX);
+        movq(buf, nativeIntArg(0), R11);
+        enterNative(buf);
+
+        emitLinkedCall(buf, sites, resolve);
+
+        int retry = buf.position();
+        int slowPath = leaveNative(buf);
+        for (int i = 0; i < 6; i++) {
+            loadq(buf, javaIntArg(i), RBP, -24 - i * 8);
+        }
+        for (int i = 0; i < 8; i++) {
+            loadsd(buf, i, RBP, -72 - i * 8);
+        }
+        loadq(buf, RBX, RBP, -136);
+        buf.put((byte) 0xc9);                           // leave
+
+        // The c2i adapter expects Method* in rbx when the method is left without code
+        buf.putShort((short) 0xa3ff).putInt(VMStructs.fromCompiledEntryOffset);  // jmp [rbx+offset]
+
+        bind(buf, slowPath);
+        emitNativeSlowPath(buf, retry);
+    }
+
+    // Passes the key in r11 and the Method* in rbx, neither of which holds a Java argument
+    @Override
+    void emitResolverEntry(ByteBuffer buf, long key, long method, long stub) {
+        movImm(buf, R11, (int) key);
+        movabs(buf, RBX, method);
+        movabs(buf, R10, stub);
+        buf.put((byte) 0x41).putShort((short) 0xe2ff);  // jmp r10
+    }
+
+    // Publishes the frame set up by enterFrame as the last Java frame
+    // and switches the thread to native
+    protected static void enterNative(ByteBuffer buf) {
+        loadq(buf, R10, RBP, 0);
+        storeq(buf, R15, VMStructs.lastJavaFpOffset, R10);
+        loadq(buf, R10, RBP, 8);
+        storeq(buf, R15, VMStructs.lastJavaPcOffset, R10);
+        lea(buf, R10, RBP, 16);
+        storeq(buf, R15, VMStructs.lastJavaSpOffset, R10);
+        storeImm(buf, R15, VMStructs.threadStateOffset, VMStructs.THREAD_IN_NATIVE);
+    }
+
+    // Switches the thread back to Java, unless a safepoint, a handshake or a suspend
+    // request is pending. Returns the jump to bind to emitNativeSlowPath
+    protected static int leaveNative(ByteBuffer buf) {
+        storeImm(buf, R15, VMStructs.threadStateOffset, VMStructs.THREAD_IN_NATIVE_TRANS);
+        buf.put((byte) 0xf0).putInt(0x00240483);        // lock add dword [rsp], 0
+
+        // The poll word is either armed, or holds the stack watermark
+        // below which frames are safe to return to. A taken ja leaves ZF clear,
+        // so it lands on the jne below, which then goes to the slow path too
+        cmpq(buf, RBP, R15, VMStructs.pollingWordOffset);
+        buf.putShort((short) 0x0077);                   // ja checked
+        int poll = buf.position();
+
+        // Object deoptimization and JVMTI/JFR trace requests, same as the native wrapper
+        cmpl(buf, R15, VMStructs.suspendFlagsOffset, 0);
+        buf.put(poll - 1, (byte) (buf.position() - poll));
+        int slowPath = jcc(buf, 0x85);                  // checked: jne slowPath
+
+        storeImm(buf, R15, VMStructs.threadStateOffset, VMStructs.THREAD_IN_JAVA);
+        clearq(buf, R15, VMStructs.lastJavaSpOffset);
+        clearq(buf, R15, VMStructs.lastJavaFpOffset);
+        clearq(buf, R15, VMStructs.lastJavaPcOffset);
+        return slowPath;
+    }
+
+    // Blocks in the VM while preserving the result at [rbp-16], then retries leaveNative
+    private void emitNativeSlowPath(ByteBuffer buf, int retry) {
+        storeImm(buf, R15, VMStructs.threadStateOffset, VMStructs.THREAD_IN_NATIVE);
+        storeq(buf, RBP, -8, RAX);
+        storesd(buf, RBP, -16, 0);
+        int env = nativeIntArg(0);
+        lea(buf, env, R15, VMStructs.jniEnvOffset);
+        xorl(buf, nativeIntArg(1));
+        xorl(buf, nativeIntArg(2));
+        loadq(buf, RAX, env, 0);
+        buf.putShort((short) 0x90ff).putInt(24 * 8);    // call [rax+192]: IsSameObject(env, NULL, NULL)
+        loadq(buf, RAX, RBP, -8);
+        loadsd(buf, 0, RBP, -16);
+        buf.put((byte) 0xe9).putInt(retry - (buf.position() + 4));  // jmp retry
+    }
+
+    // Sets up a frame with the given size of outgoing area.
+    // frameSize must be a multiple of 16 to keep the stack aligned at the call
+    protected static void enterFrame(ByteBuffer buf, int frameSize) {
+        buf.put((byte) 0x55);                           // push rbp
+        buf.put((byte) 0x48).putShort((short) 0xe589);  // mov rbp, rsp
+        if (frameSize > 0) {
+            buf.putShort((short) 0x8148).put((byte) 0xec).putInt(frameSize);  // sub rsp, frameSize
+        }
+    }
+
+    // Calls the target in the frame set up by enterFrame and returns to Java
+    protected void callAndLeave(ByteBuffer buf, List<Site> sites, long address) {
+        emitLinkedCall(buf, sites, address);
+        buf.put((byte) 0xc9);                           // leave
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    // Moves an argument from a Java register to a native register,
+    // adding the base offset to object arguments
+    protected static void moveArg(ByteBuffer buf, Class<?> type, Annotation[] annotations, int dst, int src) {
+        if (!type.isPrimitive()) {
+            lea(buf, dst, src, baseOffset(type, annotations));
+        } else if (dst != src) {
+            if (type == long.class) {
+                movq(buf, dst, src);
+            } else {
+                movl(buf, dst, src);
+            }
+        }
+    }
+
+    // mov dst32, src32
+    protected static void movl(ByteBuffer buf, int dst, int src) {
+        rex(buf, 0, src, dst);
+        buf.put((byte) 0x89);
+        modrm(buf, 3, src, dst);
+    }
+
+    // xor reg32, reg32
+    protected static void xorl(ByteBuffer buf, int reg) {
+        rex(buf, 0, reg, reg);
+        buf.put((byte) 0x31);
+        modrm(buf, 3, reg, reg);
+    }
+
+    // mov dst, src
+    protected static void movq(ByteBuffer buf, int dst, int src) {
+        rex(buf, 8, src, dst);
+        buf.put((byte) 0x89);
+        modrm(buf, 3, src, dst);
+    }
+
+    // lea dst, [base+disp]
+    protected static void lea(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 8, dst, base);
+        buf.put((byte) 0x8d);
+        mem(buf, dst, base, disp);
+    }
+
+    // lea dst, [base+index*(1<<shift)+disp]
+    protected static void lea(ByteBuffer buf, int dst, int base, int index, int shift, int disp) {
+        buf.put((byte) (0x48 | (dst & 8) >>> 1 | (index & 8) >>> 2 | (base & 8) >>> 3));
+        buf.put((byte) 0x8d);
+        boolean disp8 = disp == (byte) disp;
+        modrm(buf, disp8 ? 1 : 2, dst, RSP);
+        buf.put((byte) (shift << 6 | (index & 7) << 3 | (base & 7)));
+        if (disp8) buf.put((byte) disp); else buf.putInt(disp);
+    }
+
+    // mov dst32, imm
+    protected static void movImm(ByteBuffer buf, int dst, int imm) {
+        rex(buf, 0, 0, dst);
+        buf.put((byte) (0xb8 | (dst & 7)));
+        buf.putInt(imm);
+    }
+
+    // mov dst, imm64
+    protected static void movabs(ByteBuffer buf, int dst, long imm) {
+        rex(buf, 8, 0, dst);
+        buf.put((byte) (0xb8 | (dst & 7)));
+        buf.putLong(imm);
+    }
+
+    // shl reg, imm
+    protected static void shlq(ByteBuffer buf, int reg, int imm) {
+        rex(buf, 8, 0, reg);
+        buf.put((byte) 0xc1);
+        modrm(buf, 3, 4, reg);
+        buf.put((byte) imm);
+    }
+
+    // movzx dst32, byte [base+disp]
+    protected static void movzbl(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 0, dst, base);
+        buf.putShort((short) 0xb60f);
+        mem(buf, dst, base, disp);
+    }
+
+    // movsx dst32, byte [base+disp]
+    protected static void movsbl(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 0, dst, base);
+        buf.putShort((short) 0xbe0f);
+        mem(buf, dst, base, disp);
+    }
+
+    // movzx dst32, word [base+disp]
+    protected static void movzwl(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 0, dst, base);
+        buf.putShort((short) 0xb70f);
+        mem(buf, dst, base, disp);
+    }
+
+    // movsx dst32, word [base+disp]
+    protected static void movswl(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 0, dst, base);
+        buf.putShort((short) 0xbf0f);
+        mem(buf, dst, base, disp);
+    }
+
+    // movsxd dst, src32
+    protected static void movsxd(ByteBuffer buf, int dst, int src) {
+        rex(buf, 8, dst, src);
+        buf.put((byte) 0x63);
+        modrm(buf, 3, dst, src);
+    }
+
+    // movsxd dst, dword [base+disp]
+    protected static void movsxd(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 8, dst, base);
+        buf.put((byte) 0x63);
+        mem(buf, dst, base, disp);
+    }
+
+    // mov dst, [base+disp]
+    protected static void loadq(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 8, dst, base);
+        buf.put((byte) 0x8b);
+        mem(buf, dst, base, disp);
+    }
+
+    // mov [base+disp], src
+    protected static void storeq(ByteBuffer buf, int base, int disp, int src) {
+        rex(buf, 8, src, base);
+        buf.put((byte) 0x89);
+        mem(buf, src, base, disp);
+    }
+
+    // mov byte [base+disp], src8 (src must be one of al, cl, dl, bl)
+    protected static void storeb(ByteBuffer buf, int base, int disp, int src) {
+        rex(buf, 0, src, base);
+        buf.put((byte) 0x88);
+        mem(buf, src, base, disp);
+    }
+
+    // mov word [base+disp], src16
+    protected static void storew(ByteBuffer buf, int base, int disp, int src) {
+        buf.put((byte) 0x66);
+        rex(buf, 0, src, base);
+        buf.put((byte) 0x89);
+        mem(buf, src, base, disp);
+    }
+
+    // mov dword [base+disp], src
+    protected static void storel(ByteBuffer buf, int base, int disp, int src) {
+        rex(buf, 0, src, base);
+        buf.put((byte) 0x89);
+        mem(buf, src, base, disp);
+    }
+
+    // mov dst32, dword [base+disp]
+    protected static void loadl(ByteBuffer buf, int dst, int base, int disp) {
+        rex(buf, 0, dst, base);
+        buf.put((byte) 0x8b);
+        mem(buf, dst, base, disp);
+    }
+
+    // mov dword [base+disp], imm
+    protected static void storeImm(ByteBuffer buf, int base, int disp, int imm) {
+        rex(buf, 0, 0, base);
+        buf.put((byte) 0xc7);
+        mem(buf, 0, base, disp);
+        buf.putInt(imm);
+    }
+
+    // mov qword [base+disp], 0
+    protected static void clearq(ByteBuffer buf, int base, int disp) {
+        rex(buf, 8, 0, base);
+        buf.put((byte) 0xc7);
+        mem(buf, 0, base, disp);
+        buf.putInt(0);
+    }
+
+    // test reg, reg
+    protected static void testq(ByteBuffer buf, int reg) {
+        rex(buf, 8, reg, reg);
+        buf.put((byte) 0x85);
+        modrm(buf, 3, reg, reg);
+    }
+
+    // sub reg, [base+disp]
+    protected static void subq(ByteBuffer buf, int reg, int base, int disp) {
+        rex(buf, 8, reg, base);
+        buf.put((byte) 0x2b);
+        mem(buf, reg, base, disp);
+    }
+
+    // cmp reg, [base+disp]
+    protected static void cmpq(ByteBuffer buf, int reg, int base, int disp) {
+        rex(buf, 8, reg, base);
+        buf.put((byte) 0x3b);
+        mem(buf, reg, base, disp);
+    }
+
+    // cmp dword [base+disp], imm8
+    protected static void cmpl(ByteBuffer buf, int base, int disp, int imm) {
+        rex(buf, 0, 0, base);
+        buf.put((byte) 0x83);
+        mem(buf, 7, base, disp);
+        buf.put((byte) imm);
+    }
+
+    // cmp dword/qword [base+disp], 0: compares the reference field with null
+    protected static void cmpNull(ByteBuffer buf, int base, int disp) {
+        rex(buf, VMStructs.useCompressedOops ? 0 : 8, 0, base);
+        buf.put((byte) 0x83);
+        mem(buf, 7, base, disp);
+        buf.put((byte) 0);
+    }
+
+    // Emits a conditional jump with rel32 to be set by bind()
+    protected static int jcc(ByteBuffer buf, int cond) {
+        buf.put((byte) 0x0f).put((byte) cond).putInt(0);
+        return buf.position();
+    }
+
+    protected static void bind(ByteBuffer buf, int jump) {
+        buf.putInt(jump - 4, buf.position() - jump);
+    }
+
+    // movsd xmmDst, [base+disp]
+    protected static void loadsd(ByteBuffer buf, int dst, int base, int disp) {
+        buf.put((byte) 0xf2);
+        rex(buf, 0, dst, base);
+        buf.putShort((short) 0x100f);
+        mem(buf, dst, base, disp);
+    }
+
+    // movsd [base+disp], xmmSrc
+    protected static void storesd(ByteBuffer buf, int base, int disp, int src) {
+        buf.put((byte) 0xf2);
+        rex(buf, 0, src, base);
+        buf.putShort((short) 0x110f);
+        mem(buf, src, base, disp);
+    }
+
+    // movss xmmDst, [base+disp]
+    protected static void loadss(ByteBuffer buf, int dst, int base, int disp) {
+        buf.put((byte) 0xf3);
+        rex(buf, 0, dst, base);
+        buf.putShort((short) 0x100f);
+        mem(buf, dst, base, disp);
+    }
+
+    // movss [base+disp], xmmSrc
+    protected static void storess(ByteBuffer buf, int base, int disp, int src) {
+        buf.put((byte) 0xf3);
+        rex(buf, 0, src, base);
+        buf.putShort((short) 0x110f);
+        mem(buf, src, base, disp);
+    }
+
+    // add qword [base+disp], imm
+    protected static void addq(ByteBuffer buf, int base, int disp, int imm) {
+        rex(buf, 8, 0, base);
+        buf.put((byte) (imm == (byte) imm ? 0x83 : 0x81));
+        mem(buf, 0, base, disp);
+        if (imm == (byte) imm) buf.put((byte) imm); else buf.putInt(imm);
+    }
+
+    // movaps xmmDst, xmmSrc
+    protected static void movaps(ByteBuffer buf, int dst, int src) {
+        rex(buf, 0, dst, src);
+        buf.putShort((short) 0x280f);
+        modrm(buf, 3, dst, src);
+    }
+
+    private static void rex(ByteBuffer buf, int w, int reg, int rm) {
+        int rex = w | (reg & 8) >>> 1 | (rm & 8) >>> 3;
+        if (rex != 0) buf.put((byte) (0x40 | rex));
+    }
+
+    private static void mem(ByteBuffer buf, int reg, int base, int disp) {
+        boolean disp8 = disp == (byte) disp;
+        modrm(buf, disp8 ? 1 : 2, reg, base);
+        if ((base & 7) == RSP) buf.put((byte) 0x24);  // SIB: no index
+        if (disp8) buf.put((byte) disp); else buf.putInt(disp);
+    }
+
+    private static void modrm(ByteBuffer buf, int mod, int reg, int rm) {
+        buf.put((byte) (mod << 6 | (reg & 7) << 3 | (rm & 7)));
+    }
+}
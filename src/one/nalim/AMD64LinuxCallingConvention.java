@@ -18,14 +18,24 @@
 
 package one.nalim;
 
+import jdk.vm.ci.code.site.Site;
+
 import java.lang.annotation.Annotation;
 import java.nio.ByteBuffer;
+import java.util.List;
 
-class AMD64LinuxCallingConvention extends CallingConvention {
+class AMD64LinuxCallingConvention extends AMD64CallingConvention {
 
     // x64 calling convention (Linux, macOS):
     //     Java: rsi, rdx, rcx,  r8,  r9, rdi, stack
     //   Native: rdi, rsi, rdx, rcx,  r8,  r9, stack
+    //
+    // Floating point arguments are passed in xmm0 - xmm7, then on the stack,
+    // independently of integer arguments in both conventions.
+    // Each stack argument occupies an 8-byte slot above the return address.
+
+    private static final int[] JAVA_INT_REGS = {RSI, RDX, RCX, R8, R9, RDI};
+    private static final int[] NATIVE_INT_REGS = {RDI, RSI, RDX, RCX, R8, R9};
 
     private static final int SAVE_LAST_ARG =
             0x4889f8;  // mov  rax, rdi
@@ -57,32 +67,147 @@ class AMD64LinuxCallingConvention extends CallingConvention {
             0x4c8d48,  // lea  r9, [rax+N]
     };
 
+    private final boolean apple;
+
+    AMD64LinuxCallingConvention(boolean apple) {
+        this.apple = apple;
+    }
+
     @Override
     public void javaToNative(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
+        moveRegisterArgs(buf, types, annotations, true);
+    }
+
+    @Override
+    int outgoingAreaSize(Class<?>[] types) {
+        return stackArgCount(types) * 8;
+    }
+
+    @Override
+    void emitFramedArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
+        // Copy Java stack arguments to the outgoing area: [rbp + saved rbp + return address + slot]
+        int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i];
+            if (isFloatingPoint(type) ? fpIndex++ >= 8 : index++ >= 6) {
+                loadq(buf, RAX, RBP, 16 + stackSlot * 8);
+                if (!type.isPrimitive()) {
+                    lea(buf, RAX, RAX, baseOffset(type, annotations[i]));
+                }
+                storeq(buf, RSP, stackSlot * 8, RAX);
+                stackSlot++;
+            }
+        }
+
+        moveRegisterArgs(buf, types, annotations, false);
+    }
+
+    @Override
+    int nativeIntArg(int index) {
+        return NATIVE_INT_REGS[index];
+    }
+
+    @Override
+    int javaIntArg(int index) {
+        return JAVA_INT_REGS[index];
+    }
+
+    @Override
+    void emitLoadLastError(ByteBuffer buf, List<Site> sites) {
+        emitLinkedCall(buf, sites, errnoLocation());
+        loadl(buf, RAX, RAX, 0);
+    }
+
+    @Override
+    int syscallNumber(String name) {
+        return Syscalls.number(name, true);
+    }
+
+    @Override
+    void emitSyscall(ByteBuffer buf, int number) {
+        if (apple) {
+            super.emitSyscall(buf, number);
+            return;
+        }
+        // The kernel takes the 4th argument in r10, since syscall clobbers rcx
+        buf.put((byte) 0x49).putShort((short) 0xca89);  // mov r10, rcx
+        movImm(buf, RAX, number);                       // mov eax, number
+        buf.putShort((short) 0x050f);                   // syscall
+        buf.put((byte) 0xc3);                           // ret
+    }
+
+    @Override
+    int nativeArgRegister(Class<?>[] types, int index) {
+        boolean fp = isFloatingPoint(types[index]);
+        int count = 0;
+        for (int i = 0; i < index; i++) {
+            if (isFloatingPoint(types[i]) == fp) count++;
+        }
+        if (fp) {
+            return count < 8 ? count : -1;
+        }
+        return count < 6 ? NATIVE_INT_REGS[count] : -1;
+    }
+
+    @Override
+    void emitStoreNativeArgs(ByteBuffer buf, Class<?>[] types, int disp) {
+        int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
+        for (int i = 0; i < types.length; i++, disp += 8) {
+            Class<?> type = types[i];
+            if (isFloatingPoint(type) && fpIndex < 8) {
+                storeNativeArg(buf, type, disp, fpIndex++);
+            } else if (!isFloatingPoint(type) && index < 6) {
+                storeNativeArg(buf, type, disp, NATIVE_INT_REGS[index++]);
+            } else {
+                loadq(buf, RAX, RBP, 16 + stackSlot++ * 8);
+                storeq(buf, RSP, disp, RAX);
+            }
+        }
+    }
+
+    private static int stackArgCount(Class<?>[] types) {
+        int index = 0;
+        int fpIndex = 0;
+        int count = 0;
+        for (Class<?> type : types) {
+            if (isFloatingPoint(type) ? fpIndex++ >= 8 : index++ >= 6) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void moveRegisterArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations, boolean tail) {
         if (types.length >= 6) {
             // 6th Java argument clashes with the 1st native arg
             emit(buf, SAVE_LAST_ARG);
         }
 
         int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
         for (int i = 0; i < types.length; i++) {
             Class<?> type = types[i];
-            if (type.isPrimitive()) {
-                if (index < 6 && type != float.class && type != double.class) {
-                    emit(buf, (type == long.class ? MOVE_LONG_ARG : MOVE_INT_ARG)[index++]);
+            if (isFloatingPoint(type)) {
+                // Already in place
+                if (fpIndex++ >= 8) stackSlot++;
+            } else if (index >= 6) {
+                // Stack arguments have the same layout in both conventions.
+                // In a tail call, objects are adjusted in place, since the slot belongs to the callee
+                if (tail && !type.isPrimitive()) {
+                    addq(buf, RSP, 8 + stackSlot * 8, baseOffset(type, annotations[i]));
                 }
-            } else if (index < 6) {
+                stackSlot++;
+            } else if (type.isPrimitive()) {
+                emit(buf, (type == long.class ? MOVE_LONG_ARG : MOVE_INT_ARG)[index++]);
+            } else {
                 emit(buf, MOVE_OBJ_ARG[index++]);
                 buf.put(asByte(baseOffset(type, annotations[i])));
-            } else {
-                throw new IllegalArgumentException("Too many object arguments");
             }
         }
     }
-
-    @Override
-    public void emitCall(ByteBuffer buf, long address) {
-        buf.putShort((short) 0xb848).putLong(address);  // mov rax, address
-        buf.putShort((short) 0xe0ff);                   // jmp rax
-    }
 }
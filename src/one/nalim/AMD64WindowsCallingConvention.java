@@ -18,58 +18,173 @@
 
 package one.nalim;
 
+import jdk.vm.ci.code.site.Site;
+
 import java.lang.annotation.Annotation;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
-class AMD64WindowsCallingConvention extends CallingConvention {
+class AMD64WindowsCallingConvention extends AMD64CallingConvention {
 
     // x64 calling convention (Windows):
     //     Java: rdx,  r8,  r9, rdi, rsi, rcx, stack
+    //           xmm0 - xmm7, stack
     //   Native: rcx, rdx,  r8,  r9, stack
+    //           xmm0 - xmm3, stack
+    //
+    // Java assigns integer and floating point registers independently,
+    // while in the native convention, each argument position owns
+    // one integer and one FP register, e.g. (int, double) => (rcx, xmm1).
+    // Native stack arguments start after 32 bytes of shadow space,
+    // so a stub with more than 4 arguments builds its own frame.
+
+    private static final int[] JAVA_INT_REGS = {RDX, R8, R9, RDI, RSI, RCX};
+    private static final int[] NATIVE_INT_REGS = {RCX, RDX, R8, R9};
 
-    private static final int[] MOVE_INT_ARG = {
-            0x89d1,    // mov  ecx, edx
-            0x4489c2,  // mov  edx, r8d
-            0x4589c8,  // mov  r8d, r9d
-            0x4189f9,  // mov  r9d, edi
-    };
-
-    private static final int[] MOVE_LONG_ARG = {
-            0x4889d1,  // mov  rcx, rdx
-            0x4c89c2,  // mov  rdx, r8
-            0x4d89c8,  // mov  r8, r9
-            0x4989f9,  // mov  r9, rdi
-    };
-
-    private static final int[] MOVE_OBJ_ARG = {
-            0x488d4a,  // lea  rcx, [rdx+N]
-            0x498d50,  // lea  rdx, [r8+N]
-            0x4d8d41,  // lea  r8, [r9+N]
-            0x4c8d4f,  // lea  r9, [rdi+N]
-    };
+    private static final int SHADOW_SPACE = 32;
 
     @Override
-    public void javaToNative(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
-        int index = 0;
+    int shadowSpace() {
+        return SHADOW_SPACE;
+    }
+
+    @Override
+    void emitStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        if (types.length <= 4) {
+            super.emitStub(buf, sites, types, annotations, address);
+            return;
+        }
+
+        enterFrame(buf, (outgoingAreaSize(types) + 15) & ~15);
+        emitFramedArgs(buf, types, annotations);
+        callAndLeave(buf, sites, address);
+    }
+
+    @Override
+    int outgoingAreaSize(Class<?>[] types) {
+        return SHADOW_SPACE + Math.max(types.length - 4, 0) * 8;
+    }
+
+    @Override
+    void emitFramedArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
+        // Fill outgoing stack arguments first, since their sources
+        // may be overwritten by register arguments, e.g. rcx
+        int intIndex = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
         for (int i = 0; i < types.length; i++) {
             Class<?> type = types[i];
-            if (type == float.class || type == double.class) {
+            int disp = SHADOW_SPACE + (i - 4) * 8;
+            if (isFloatingPoint(type)) {
+                if (fpIndex < 8) {
+                    if (i >= 4) storesd(buf, RSP, disp, fpIndex);
+                    fpIndex++;
+                    continue;
+                }
+            } else if (intIndex < 6) {
+                if (i >= 4) {
+                    int src = JAVA_INT_REGS[intIndex];
+                    if (!type.isPrimitive()) {
+                        lea(buf, RAX, src, baseOffset(type, annotations[i]));
+                        src = RAX;
+                    }
+                    storeq(buf, RSP, disp, src);
+                }
+                intIndex++;
                 continue;
             }
-            if (index >= 4) {
-                throw new IllegalArgumentException("At most 4 integer arguments are supported");
-            } else if (type.isPrimitive()) {
-                emit(buf, (type == long.class ? MOVE_LONG_ARG : MOVE_INT_ARG)[index++]);
+
+            // Java stack argument: [rbp + saved rbp + return address + slot]
+            loadq(buf, RAX, RBP, 16 + stackSlot * 8);
+            if (!type.isPrimitive()) {
+                lea(buf, RAX, RAX, baseOffset(type, annotations[i]));
+            }
+            storeq(buf, RSP, disp, RAX);
+            stackSlot++;
+        }
+
+        int count = Math.min(types.length, 4);
+        javaToNative(buf, Arrays.copyOf(types, count), Arrays.copyOf(annotations, count));
+    }
+
+    @Override
+    int nativeIntArg(int index) {
+        return NATIVE_INT_REGS[index];
+    }
+
+    @Override
+    int javaIntArg(int index) {
+        return JAVA_INT_REGS[index];
+    }
+
+    @Override
+    void emitLoadLastError(ByteBuffer buf, List<Site> sites) {
+        Linker.loadLibrary("kernel32");
+        emitLinkedCall(buf, sites, findFunction("GetLastError"));
+    }
+
+    @Override
+    int nativeArgRegister(Class<?>[] types, int index) {
+        if (index >= 4) {
+            return -1;
+        }
+        return isFloatingPoint(types[index]) ? index : NATIVE_INT_REGS[index];
+    }
+
+    @Override
+    void emitStoreNativeArgs(ByteBuffer buf, Class<?>[] types, int disp) {
+        for (int i = 0; i < types.length; i++, disp += 8) {
+            if (i < 4) {
+                storeNativeArg(buf, types[i], disp, isFloatingPoint(types[i]) ? i : NATIVE_INT_REGS[i]);
             } else {
-                emit(buf, MOVE_OBJ_ARG[index++]);
-                buf.put(asByte(baseOffset(type, annotations[i])));
+                // Stack arguments follow the return address and 32 bytes of shadow space
+                loadq(buf, RAX, RBP, 48 + (i - 4) * 8);
+                storeq(buf, RSP, disp, RAX);
             }
         }
     }
 
     @Override
-    public void emitCall(ByteBuffer buf, long address) {
-        buf.putShort((short) 0xb848).putLong(address);  // mov rax, address
-        buf.putShort((short) 0xe0ff);                   // jmp rax
+    void emitReturnStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        int count = types.length - 1;
+        if (returnFields(types[count], annotations[count]).length > 1) {
+            // Structs larger than 8 bytes are returned through a hidden pointer, not in rax:rdx
+            throw new IllegalArgumentException("@Return supports only one field on Windows");
+        }
+        super.emitReturnStub(buf, sites, types, annotations, address);
+    }
+
+    @Override
+    public void javaToNative(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
+        if (types.length > 4) {
+            throw new IllegalArgumentException("At most 4 arguments are supported");
+        }
+
+        int[] javaIndex = new int[types.length];
+        int intIndex = 0;
+        int fpIndex = 0;
+        for (int i = 0; i < types.length; i++) {
+            javaIndex[i] = isFloatingPoint(types[i]) ? fpIndex++ : intIndex++;
+        }
+
+        // An argument never moves to a lower position. Arguments shifted by preceding
+        // FP arguments are moved first in reverse order, so that no source is overwritten
+        for (int i = types.length; --i >= 0; ) {
+            if (isFloatingPoint(types[i])) {
+                if (javaIndex[i] != i) {
+                    movaps(buf, i, javaIndex[i]);
+                }
+            } else if (javaIndex[i] != i) {
+                moveArg(buf, types[i], annotations[i], NATIVE_INT_REGS[i], JAVA_INT_REGS[javaIndex[i]]);
+            }
+        }
+
+        // Then the remaining integer arguments are shifted down one register
+        for (int i = 0; i < types.length; i++) {
+            if (!isFloatingPoint(types[i]) && javaIndex[i] == i) {
+                moveArg(buf, types[i], annotations[i], NATIVE_INT_REGS[i], JAVA_INT_REGS[i]);
+            }
+        }
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an object parameter that holds a native address in a long field.
+ * The value of the field, rather than the address of the object,
+ * is passed to a native function. Optionally, the value of an int field
+ * is added to the address. A null object is passed as NULL.
+ * <p>
+ * Direct ByteBuffers are handled this way without the annotation:
+ * a native function receives the address of the buffer's current position.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Address {
+    /**
+     * The name of the long field that contains the native address.
+     */
+    String value() default "address";
+
+    /**
+     * The name of the int field added to the address, e.g. "position".
+     * If empty, the address is passed as is.
+     */
+    String position() default "";
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.util.Arrays;
+
+/**
+ * Bump-pointer allocator of native memory. Memory is taken from {@code malloc}
+ * in chunks and is released all at once by {@link #reset()} or {@link #close()};
+ * there is no per-allocation free.
+ * <p>
+ * Returned addresses are plain native pointers, suitable for {@code long}
+ * arguments of {@code @Link} methods. An arena is confined to one thread.
+ */
+public class Arena implements AutoCloseable {
+    private static final long DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final long DEFAULT_ALIGNMENT = 16;
+
+    private final long chunkSize;
+    private long[] chunks = new long[4];
+    private int chunkCount;
+
+    private long top;
+    private long limit;
+    private long liveBytes;
+    private long reservedBytes;
+
+    public Arena() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public Arena(long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.top = addChunk(chunkSize);
+        this.limit = top + chunkSize;
+    }
+
+    /**
+     * Allocates size bytes aligned to 16 bytes.
+     */
+    public long allocate(long size) {
+        return allocate(size, DEFAULT_ALIGNMENT);
+    }
+
+    /**
+     * Allocates size bytes aligned to the given power of two.
+     */
+    public long allocate(long size, long alignment) {
+        if (size < 0 || Long.bitCount(alignment) != 1) {
+            throw new IllegalArgumentException("Invalid size " + size + " or alignment " + alignment);
+        }
+
+        long address = (top + alignment - 1) & -alignment;
+        if (address + size > limit || chunkCount == 0) {
+            address = allocateSlow(size, alignment);
+        } else {
+            top = address + size;
+        }
+        liveBytes += size;
+        return address;
+    }
+
+    private long allocateSlow(long size, long alignment) {
+        if (chunkCount == 0) {
+            throw new IllegalStateException("Arena is closed");
+        }
+
+        // malloc guarantees 16-byte alignment, the rest is padding
+        long capacity = size + Math.max(alignment - DEFAULT_ALIGNMENT, 0);
+        if (capacity > chunkSize / 4) {
+            // Large blocks get their own chunk, the current one is still used
+            return (addChunk(capacity) + alignment - 1) & -alignment;
+        }
+
+        long chunk = addChunk(chunkSize);
+        long address = (chunk + alignment - 1) & -alignment;
+        top = address + size;
+        limit = chunk + chunkSize;
+        return address;
+    }
+
+    private long addChunk(long capacity) {
+        long chunk = malloc(capacity);
+        if (chunk == 0) {
+            throw new OutOfMemoryError("Cannot allocate " + capacity + " bytes of native memory");
+        }
+
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        chunks[chunkCount++] = chunk;
+        reservedBytes += capacity;
+        return chunk;
+    }
+
+    /**
+     * Releases all allocations, but keeps the first chunk for reuse.
+     */
+    public void reset() {
+        if (chunkCount == 0) {
+            throw new IllegalStateException("Arena is closed");
+        }
+        for (int i = 1; i < chunkCount; i++) {
+            free(chunks[i]);
+        }
+        chunkCount = 1;
+        top = chunks[0];
+        limit = top + chunkSize;
+        liveBytes = 0;
+        reservedBytes = chunkSize;
+    }
+
+    /**
+     * Releases all memory of the arena. Further allocations are not allowed.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < chunkCount; i++) {
+            free(chunks[i]);
+        }
+        chunkCount = 0;
+        top = limit = 0;
+        liveBytes = reservedBytes = 0;
+    }
+
+    /**
+     * Total size of allocations since creation or the last reset.
+     */
+    public long liveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Native memory held by the arena, including unused space in chunks.
+     */
+    public long reservedBytes() {
+        return reservedBytes;
+    }
+
+    @Link
+    private static native long malloc(long size);
+
+    @Link
+    private static native void free(long ptr);
+
+    static {
+        Linker.linkClass(Arena.class);
+    }
+}
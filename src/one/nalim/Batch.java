@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Applies a scalar native function to arrays of arguments in a single call.
+ * Every parameter of the Java method, except the last one, is a primitive array
+ * whose component type matches the corresponding parameter of the native function.
+ * If {@link #output()} is true, the last array receives the results.
+ * The last parameter is an int count of elements to process.
+ * <p>
+ * For example, {@code int add(int a, int b)} is applied to arrays with
+ * <pre>
+ * &#64;Link(name = "add")
+ * &#64;Batch
+ * static native void addAll(int[] a, int[] b, int[] result, int count);
+ * </pre>
+ * Arrays are not checked against the count. The loop runs without safepoints,
+ * so the count should be limited, like the duration of any CRITICAL call.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batch {
+    /**
+     * true, if the last array stores the values returned by the function;
+     * false, if the function result is ignored.
+     */
+    boolean output() default true;
+}
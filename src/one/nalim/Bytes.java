@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Objects;
+
+/**
+ * Bulk operations on byte arrays backed by the vectorized implementations
+ * in libc and zlib. Arrays are passed to native code without copying;
+ * bounds are checked in Java before every call.
+ * <p>
+ * Functions run in {@link Link.Mode#CRITICAL} mode, so very large ranges delay safepoints.
+ * zlib is loaded on the first checksum call, either from the path given by
+ * the {@code nalim.zlib} system property or from a standard system location.
+ * A function not available on the current platform throws {@link UnsatisfiedLinkError}.
+ */
+public class Bytes {
+
+    /**
+     * Returns the index of the first occurrence of value in array[from, to), or -1.
+     */
+    public static int indexOf(byte[] array, int from, int to, byte value) {
+        Objects.checkFromToIndex(from, to, array.length);
+        long offset = memchr(array, from, value, to - from);
+        return offset < 0 ? -1 : from + (int) offset;
+    }
+
+    /**
+     * Returns the index of the last occurrence of value in array[from, to), or -1.
+     */
+    public static int lastIndexOf(byte[] array, int from, int to, byte value) {
+        Objects.checkFromToIndex(from, to, array.length);
+        long offset = memrchr(array, from, value, to - from);
+        return offset < 0 ? -1 : from + (int) offset;
+    }
+
+    /**
+     * Returns the index of the first occurrence of needle in array[from, to), or -1.
+     */
+    public static int indexOf(byte[] array, int from, int to, byte[] needle) {
+        Objects.checkFromToIndex(from, to, array.length);
+        long offset = memmem(array, from, to - from, needle, needle.length);
+        return offset < 0 ? -1 : from + (int) offset;
+    }
+
+    /**
+     * Compares length bytes of a and b as unsigned values, like {@code memcmp}.
+     * Returns a negative number, zero or a positive number.
+     */
+    public static int compare(byte[] a, int aFrom, byte[] b, int bFrom, int length) {
+        Objects.checkFromIndexSize(aFrom, length, a.length);
+        Objects.checkFromIndexSize(bFrom, length, b.length);
+        return memcmp(a, aFrom, b, bFrom, length);
+    }
+
+    /**
+     * Returns the length of a zero-terminated string starting at array[from],
+     * but no more than to - from.
+     */
+    public static int strnlen(byte[] array, int from, int to) {
+        Objects.checkFromToIndex(from, to, array.length);
+        return (int) strnlen(array, from, (long) (to - from));
+    }
+
+    /**
+     * Updates CRC-32 checksum with array[from, from + length).
+     */
+    public static int crc32(int crc, byte[] array, int from, int length) {
+        Objects.checkFromIndexSize(from, length, array.length);
+        return (int) Zlib.crc32(crc & 0xffffffffL, array, from, length);
+    }
+
+    /**
+     * Updates Adler-32 checksum with array[from, from + length).
+     */
+    public static int adler32(int adler, byte[] array, int from, int length) {
+        Objects.checkFromIndexSize(from, length, array.length);
+        return (int) Zlib.adler32(adler & 0xffffffffL, array, from, length);
+    }
+
+    @Link
+    @ReturnOffset
+    private static native long memchr(byte[] s, @Offset int from, int c, long n);
+
+    @Link
+    @ReturnOffset
+    private static native long memrchr(byte[] s, @Offset int from, int c, long n);
+
+    @Link
+    @ReturnOffset
+    private static native long memmem(byte[] haystack, @Offset int from, long haystackLength, byte[] needle, long needleLength);
+
+    @Link
+    private static native int memcmp(byte[] s1, @Offset int from1, byte[] s2, @Offset int from2, long n);
+
+    @Link
+    private static native long strnlen(byte[] s, @Offset int from, long maxLength);
+
+    static {
+        // memrchr and memmem are GNU extensions
+        for (Method m : Bytes.class.getDeclaredMethods()) {
+            if (m.isAnnotationPresent(Link.class)) {
+                try {
+                    Linker.linkMethod(m);
+                } catch (IllegalArgumentException e) {
+                    // Not available on this platform
+                }
+            }
+        }
+    }
+
+    private static class Zlib {
+
+        @Link
+        static native long crc32(long crc, byte[] buf, @Offset int from, int length);
+
+        @Link
+        static native long adler32(long adler, byte[] buf, @Offset int from, int length);
+
+        // libz.so is a development symlink, so look for the runtime library as well
+        private static final String[] LIBRARIES = {
+                "z",
+                "/lib64/libz.so.1",
+                "/usr/lib64/libz.so.1",
+                "/lib/x86_64-linux-gnu/libz.so.1",
+                "/lib/aarch64-linux-gnu/libz.so.1",
+                "/lib/riscv64-linux-gnu/libz.so.1",
+                "/usr/lib/libz.dylib",
+        };
+
+        static {
+            String property = System.getProperty("nalim.zlib");
+            if (property != null) {
+                Linker.loadLibrary(property);
+            } else {
+                loadAny(LIBRARIES);
+            }
+            Linker.linkClass(Zlib.class);
+        }
+
+        private static void loadAny(String[] libraries) {
+            for (String library : libraries) {
+                if (library.indexOf('/') < 0 || new File(library).exists()) {
+                    try {
+                        Linker.loadLibrary(library);
+                        return;
+                    } catch (UnsatisfiedLinkError e) {
+                        // Try next
+                    }
+                }
+            }
+            throw new UnsatisfiedLinkError("zlib not found. Specify its path with -Dnalim.zlib");
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * Call counters of linked native methods.
+ * <p>
+ * Counting is off by default and enabled with {@code -Dnalim.counters=true}.
+ * A method linked while counting is enabled gets a stub that first increments
+ * its counter in off-heap memory; stubs of other methods are not changed at all.
+ * Every counter is split into {@link #STRIPES} cache lines, and a thread updates
+ * the stripe selected by its hash, so that concurrent callers rarely contend.
+ * <p>
+ * Counts are available through {@link #snapshot()} and the
+ * {@code one.nalim:type=CallCounters} MXBean.
+ */
+public class CallCounters {
+    public static final int STRIPES = 16;
+
+    private static final int STRIPE_SIZE = 64;
+
+    static final boolean ENABLED = Boolean.getBoolean("nalim.counters");
+
+    private static final Map<Method, Long> counters = new ConcurrentHashMap<>();
+    private static final AtomicBoolean mbeanRegistered = new AtomicBoolean();
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns the number of calls of the given method,
+     * or 0 if the method was linked without counting.
+     */
+    public static long get(Method m) {
+        Long address = counters.get(m);
+        return address == null ? 0 : sum(address);
+    }
+
+    /**
+     * Returns call counts of all instrumented methods sorted by method name.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<Method, Long> entry : counters.entrySet()) {
+            snapshot.merge(methodName(entry.getKey()), sum(entry.getValue()), Long::sum);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Resets all counters to zero. Calls in progress may or may not be counted.
+     */
+    public static void reset() {
+        for (long address : counters.values()) {
+            for (int i = 0; i < STRIPES; i++) {
+                unsafe.putLongVolatile(null, address + i * STRIPE_SIZE, 0);
+            }
+        }
+    }
+
+    // Returns the address of the counter for the method, allocating it on the first call
+    static long register(Method m) {
+        if (mbeanRegistered.compareAndSet(false, true)) {
+            registerMBean();
+        }
+        return counters.computeIfAbsent(m, key -> {
+            long size = STRIPES * STRIPE_SIZE;
+            long address = unsafe.allocateMemory(size + STRIPE_SIZE - 1);
+            address = (address + STRIPE_SIZE - 1) & -STRIPE_SIZE;
+            unsafe.setMemory(address, size, (byte) 0);
+            return address;
+        });
+    }
+
+    private static long sum(long address) {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += unsafe.getLongVolatile(null, address + i * STRIPE_SIZE);
+        }
+        return sum;
+    }
+
+    static String methodName(Method m) {
+        StringBuilder sb = new StringBuilder(m.getDeclaringClass().getName()).append('.').append(m.getName()).append('(');
+        Class<?>[] types = m.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(types[i].getSimpleName());
+        }
+        return sb.append(')').toString();
+    }
+
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("one.nalim:type=CallCounters"));
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Bean implements CallCountersMXBean {
+
+        @Override
+        public Map<String, Long> getCounts() {
+            return snapshot();
+        }
+
+        @Override
+        public long getTotalCalls() {
+            long total = 0;
+            for (long address : counters.values()) {
+                total += sum(address);
+            }
+            return total;
+        }
+
+        @Override
+        public void reset() {
+            CallCounters.reset();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * Latency histograms of linked native methods.
+ * <p>
+ * Timing is off by default and enabled with {@code -Dnalim.timing=true}.
+ * A method linked while timing is enabled calls its function through a wrapper
+ * that reads the time stamp counter (the virtual counter on aarch64) before
+ * and after the call, and records the difference in a log-linear histogram
+ * held off-heap: exact values below 16 ticks, then 8 buckets per power of two.
+ * <p>
+ * Calls longer than {@code nalim.timing.threshold} microseconds (1000 by default)
+ * are counted separately. A daemon thread checks these counts every
+ * {@code nalim.timing.interval} milliseconds and prints the names of offending methods,
+ * since a long call in critical mode delays safepoints for the whole JVM.
+ * <p>
+ * While timing is enabled, a Flight Recording also receives a periodic
+ * {@code one.nalim.NativeCall} event for each method called since the previous period,
+ * with the number of calls, maximum and 99th percentile duration.
+ */
+public class CallTiming {
+    static final boolean ENABLED = Boolean.getBoolean("nalim.timing");
+
+    private static final long THRESHOLD_MICROS = Long.getLong("nalim.timing.threshold", 1000);
+    private static final long REPORT_INTERVAL = Long.getLong("nalim.timing.interval", 1000);
+
+    // Slow call count at 0, maximum ticks at 8, buckets from 64
+    private static final int HEADER_SIZE = 64;
+    private static final int BUCKETS = 496;
+
+    // Wrapper copies a limited number of stack arguments
+    static final int MAX_STACK_SLOTS = 48;
+
+    private static final Map<Method, Long> histograms = new ConcurrentHashMap<>();
+    private static final Map<Method, String> targets = new ConcurrentHashMap<>();
+    private static final Map<Method, Histogram> emitted = new HashMap<>();
+    private static final AtomicBoolean reporterStarted = new AtomicBoolean();
+
+    // Calibration initializes Intrinsics, which may link methods and register them here
+    private static final double ticksPerNano = ENABLED ? calibrate() : 1;
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Returns the histogram of the given method,
+     * or null if the method was linked without timing.
+     */
+    public static Histogram get(Method m) {
+        Long address = histograms.get(m);
+        return address == null ? null : new Histogram(address);
+    }
+
+    /**
+     * Returns histograms of all timed methods sorted by method name.
+     */
+    public static Map<String, Histogram> snapshot() {
+        Map<String, Histogram> snapshot = new TreeMap<>();
+        for (Map.Entry<Method, Long> entry : histograms.entrySet()) {
+            snapshot.put(CallCounters.methodName(entry.getKey()), new Histogram(entry.getValue()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Clears all histograms. Calls in progress may or may not be recorded.
+     */
+    public static void reset() {
+        for (long address : histograms.values()) {
+            unsafe.setMemory(address, HEADER_SIZE + BUCKETS * 8, (byte) 0);
+        }
+    }
+
+    static long thresholdTicks() {
+        return (long) (THRESHOLD_MICROS * 1000 * ticksPerNano);
+    }
+
+    // Returns the address of the histogram for the method, allocating it on the first call
+    static long register(Method m, String target) {
+        targets.put(m, target);
+        if (reporterStarted.compareAndSet(false, true)) {
+            startReporter();
+            Events.addPeriodicNativeCalls(CallTiming::emitEvents);
+        }
+        return histograms.computeIfAbsent(m, key -> {
+            long size = HEADER_SIZE + BUCKETS * 8;
+            long address = unsafe.allocateMemory(size);
+            unsafe.setMemory(address, size, (byte) 0);
+            return address;
+        });
+    }
+
+    private static double calibrate() {
+        long startNanos = System.nanoTime();
+        long startTicks = Intrinsics.timestamp();
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (double) (Intrinsics.timestamp() - startTicks) / (System.nanoTime() - startNanos);
+    }
+
+    private static void startReporter() {
+        Thread thread = new Thread(CallTiming::report, "nalim-timing-reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void report() {
+        Map<Method, Long> reported = new HashMap<>();
+        try {
+            while (true) {
+                Thread.sleep(REPORT_INTERVAL);
+                for (Map.Entry<Method, Long> entry : histograms.entrySet()) {
+                    long slowCalls = unsafe.getLongVolatile(null, entry.getValue());
+                    Long previous = reported.put(entry.getKey(), slowCalls);
+                    long count = slowCalls - (previous == null ? 0 : previous);
+                    if (count > 0) {
+                        long maxMicros = (long) (unsafe.getLongVolatile(null, entry.getValue() + 8) / ticksPerNano / 1000);
+                        System.err.println("[nalim] " + count + " calls of " + CallCounters.methodName(entry.getKey()) + " exceeded "
+                                + THRESHOLD_MICROS + " us, max " + maxMicros + " us");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stop reporting
+        }
+    }
+
+    // Called by JFR once per period of the NativeCall event
+    private static synchronized void emitEvents() {
+        for (Map.Entry<Method, Long> entry : histograms.entrySet()) {
+            Histogram current = new Histogram(entry.getValue());
+            Histogram previous = emitted.put(entry.getKey(), current);
+            Histogram delta = previous == null ? current : current.since(previous);
+            if (delta.count > 0) {
+                Events.nativeCall(CallCounters.methodName(entry.getKey()), targets.get(entry.getKey()),
+                        delta.count, delta.max(), delta.quantile(0.99));
+            }
+        }
+    }
+
+    /**
+     * Copy of a method histogram. Values are in nanoseconds.
+     */
+    public static class Histogram {
+        private final long[] buckets = new long[BUCKETS];
+        private final long slowCalls;
+        private final long maxTicks;
+        private final long count;
+
+        Histogram(long address) {
+            slowCalls = unsafe.getLongVolatile(null, address);
+            maxTicks = unsafe.getLongVolatile(null, address + 8);
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets[i] = unsafe.getLongVolatile(null, address + HEADER_SIZE + i * 8);
+            }
+            this.count = count;
+        }
+
+        private Histogram(long[] buckets, long slowCalls, long maxTicks) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += this.buckets[i] = buckets[i];
+            }
+            this.slowCalls = slowCalls;
+            this.maxTicks = maxTicks;
+            this.count = count;
+        }
+
+        // Calls recorded after the previous copy; the maximum is bounded by the highest new bucket
+        Histogram since(Histogram previous) {
+            long[] delta = new long[BUCKETS];
+            long maxTicks = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                delta[i] = Math.max(buckets[i] - previous.buckets[i], 0);
+                if (delta[i] > 0) {
+                    maxTicks = Math.min(upperBound(i), this.maxTicks);
+                }
+            }
+            return new Histogram(delta, Math.max(slowCalls - previous.slowCalls, 0), maxTicks);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Number of calls longer than the reporting threshold.
+         */
+        public long slowCalls() {
+            return slowCalls;
+        }
+
+        public long max() {
+            return (long) (maxTicks / ticksPerNano);
+        }
+
+        /**
+         * Returns the upper bound of the bucket containing the given quantile, e.g. 0.999.
+         */
+        public long quantile(double q) {
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return (long) (Math.min(upperBound(i), maxTicks) / ticksPerNano);
+                }
+            }
+            return 0;
+        }
+
+        public long[] buckets() {
+            return buckets.clone();
+        }
+
+        // Inverse of the bucket computation in the timing wrapper
+        static long upperBound(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int shift = (bucket - 8) / 8;
+            long sub = (bucket - 8) % 8;
+            return ((8 + sub + 1) << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " p50=" + quantile(0.5) + " p99=" + quantile(0.99)
+                    + " p99.9=" + quantile(0.999) + " max=" + max() + " slow=" + slowCalls;
+        }
+    }
+}
@@ -18,6 +18,9 @@
 
 package one.nalim;
 
+import jdk.vm.ci.code.site.Call;
+import jdk.vm.ci.code.site.Site;
+import jdk.vm.ci.hotspot.HotSpotForeignCallTarget;
 import jdk.vm.ci.meta.JavaKind;
 import jdk.vm.ci.meta.MetaAccessProvider;
 import jdk.vm.ci.meta.ResolvedJavaField;
@@ -25,8 +28,35 @@ import jdk.vm.ci.runtime.JVMCI;
 
 import java.lang.annotation.Annotation;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 abstract class CallingConvention {
+    private static final boolean NEAR_CALLS = !"false".equals(System.getProperty("nalim.nearCalls"));
+
+    // Location of a Java argument that is passed in an FP register
+    private static final int FP_REGISTER = Integer.MAX_VALUE;
+
+    // Location of an optional argument that is not passed
+    static final int NO_LOCATION = Integer.MIN_VALUE;
+
+    private static final Address BYTE_BUFFER_ADDRESS = new Address() {
+        @Override
+        public String value() {
+            return "address";
+        }
+
+        @Override
+        public String position() {
+            return "position";
+        }
+
+        @Override
+        public Class<? extends Annotation> annotationType() {
+            return Address.class;
+        }
+    };
 
     static CallingConvention getInstance() {
         String arch = System.getProperty("os.arch").toLowerCase();
@@ -34,26 +64,414 @@ abstract class CallingConvention {
             throw new IllegalStateException("Unsupported architecture: " + arch);
         }
 
+        String os = System.getProperty("os.name").toLowerCase();
         if (arch.contains("aarch") || arch.contains("arm")) {
-            return new AArch64CallingConvention();
+            return new AArch64CallingConvention(os.contains("mac"));
         }
 
         if (arch.contains("riscv")) {
             return new RISCV64CallingConvention();
         }
 
-        String os = System.getProperty("os.name").toLowerCase();
         if (os.contains("windows")) {
             return new AMD64WindowsCallingConvention();
         } else {
-            return new AMD64LinuxCallingConvention();
+            return new AMD64LinuxCallingConvention(os.contains("mac"));
         }
     }
 
     abstract void javaToNative(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations);
 
+    // Jumps to an arbitrary address through a scratch register
     abstract void emitCall(ByteBuffer buf, long address);
 
+    // Calls an arbitrary address through a scratch register and returns to the next instruction
+    abstract void emitIndirectCall(ByteBuffer buf, long address);
+
+    // Maximum distance a direct branch can reach, or 0 if direct branches are not supported
+    long branchRange() {
+        return 0;
+    }
+
+    // Emits a direct branch with zero displacement, which is patched by HotSpot on installation
+    void emitBranch(ByteBuffer buf, boolean link) {
+        throw new IllegalArgumentException("Direct branches are not supported on this platform");
+    }
+
+    // Translates arguments and calls the native function at the given address.
+    // A tail call is used when native stack arguments match the Java ones;
+    // otherwise a convention may set up its own frame for outgoing arguments
+    void emitStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        javaToNative(buf, types, annotations);
+        emitCall(buf, sites, address);
+    }
+
+    // Same as emitStub, but the native function is called in the native thread state
+    void emitBlockingStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        throw new IllegalArgumentException("Blocking mode is not supported on this platform");
+    }
+
+    // Same as emitStub, but the last argument is an int[] that receives the error code
+    // of the native function. The argument itself is not passed to the function
+    void emitLastErrorStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        throw new IllegalArgumentException("@LastError is not supported on this platform");
+    }
+
+    // Number of integer registers used for Java arguments; all architectures use 8 FP registers
+    abstract int javaIntRegisters();
+
+    // Moves a Java argument between locations: a non-negative location is an index
+    // of Java integer register, a negative one is a stack slot encoded as (-1 - slot)
+    abstract void emitMoveJavaArg(ByteBuffer buf, int dst, int src);
+
+    // Replaces the array at the given location with the address of its element:
+    // array + base + (sign-extended int index << shift)
+    abstract void emitElementAddress(ByteBuffer buf, int array, int index, int base, int shift);
+
+    // Replaces the object at the given location with the long value at addressOffset,
+    // plus the int value at positionOffset unless it is negative. Null stays null.
+    // Unless heapOffset is negative, the object becomes null if the reference field
+    // at heapOffset is not null, i.e. a ByteBuffer is backed by a Java array
+    abstract void emitLoadAddress(ByteBuffer buf, int location, int addressOffset, int positionOffset, int heapOffset);
+
+    // Replaces the String at the given location with the address of its value array data.
+    // Unless lengthLocation or coderLocation is NO_LOCATION, stores there the length of the
+    // value array in bytes and the coder (0 = LATIN1, 1 = UTF16). Null becomes NULL, 0, 0
+    abstract void emitStringValue(ByteBuffer buf, int location, int lengthLocation, int coderLocation);
+
+    // Turns arguments that denote memory into raw addresses before the call:
+    //   - direct ByteBuffers become address + position, heap ByteBuffers become NULL;
+    //   - objects marked with @Address become the value of the given long field;
+    //   - arrays followed by an @Offset argument become the address of the array element;
+    //   - Strings become the address of their value array, optionally followed by
+    //     the length and the coder as additional int arguments.
+    // Offset arguments are not passed to the native function, and the remaining
+    // Java arguments are moved to where they would be in the converted signature.
+    // Returns argument types for the rest of the stub, where converted arguments become long
+    Class<?>[] emitAddressArgs(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
+        int[] sources = argumentSources(types, annotations);
+        Class<?>[] newTypes = new Class<?>[sources.length];
+        for (int j = 0; j < sources.length; j++) {
+            int i = sources[j];
+            newTypes[j] = i < 0 ? int.class : isConverted(types, annotations, i) ? long.class : types[i];
+        }
+
+        int[] locations = javaLocations(types);
+        int[] newLocations = javaLocations(newTypes);
+        if (stackSlots(newLocations) > stackSlots(locations)) {
+            // Java stack arguments belong to the caller's frame, which cannot grow
+            throw new IllegalArgumentException("Too many arguments after String expansion");
+        }
+
+        // Objects and arrays are converted in place first, while @Offset arguments are still there
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i];
+            Address address = findAddress(type, annotations[i]);
+            if (address != null) {
+                int positionOffset = address.position().isEmpty() ? -1 : fieldOffset(type, address.position(), JavaKind.Int);
+                int heapOffset = address == BYTE_BUFFER_ADDRESS ? fieldOffset(ByteBuffer.class, "hb", JavaKind.Object) : -1;
+                emitLoadAddress(buf, locations[i], fieldOffset(type, address.value(), JavaKind.Long), positionOffset, heapOffset);
+            } else if (isOffset(annotations[i])) {
+                Class<?> arrayType = i > 0 ? types[i - 1] : null;
+                if (arrayType == null || !arrayType.isArray() || !arrayType.getComponentType().isPrimitive()
+                        || isOffset(annotations[i - 1]) || type != int.class) {
+                    throw new IllegalArgumentException("@Offset must be an int parameter following a primitive array");
+                }
+
+                int scale = JavaKind.fromJavaClass(arrayType.getComponentType()).getByteCount();
+                emitElementAddress(buf, locations[i - 1], locations[i], arrayBaseOffset(arrayType),
+                        Integer.numberOfTrailingZeros(scale));
+            }
+        }
+
+        List<int[]> moves = new ArrayList<>();
+        for (int j = 0; j < sources.length; j++) {
+            int i = sources[j];
+            if (i >= 0 && newLocations[j] != locations[i]) {
+                moves.add(new int[]{newLocations[j], locations[i]});
+            }
+        }
+        emitMoves(buf, moves);
+
+        // Strings are expanded last, when the slots for their length and coder are free
+        for (int j = 0; j < sources.length; j++) {
+            int i = sources[j];
+            if (i >= 0 && types[i] == String.class) {
+                StringValue value = findStringValue(annotations[i]);
+                int next = j + 1;
+                int lengthLocation = value != null && value.length() ? newLocations[next++] : NO_LOCATION;
+                int coderLocation = value != null && value.coder() ? newLocations[next] : NO_LOCATION;
+                emitStringValue(buf, newLocations[j], lengthLocation, coderLocation);
+            }
+        }
+        return newTypes;
+    }
+
+    // Parameter annotations that match the argument types returned by emitAddressArgs
+    static Annotation[][] convertAnnotations(Class<?>[] types, Annotation[][] annotations) {
+        return Arrays.stream(argumentSources(types, annotations))
+                .mapToObj(i -> i < 0 ? new Annotation[0] : annotations[i])
+                .toArray(Annotation[][]::new);
+    }
+
+    static boolean hasAddressArgs(Class<?>[] types, Annotation[][] annotations) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == String.class || isOffset(annotations[i]) || findAddress(types[i], annotations[i]) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // For each argument after conversion, the index of the Java argument it comes from,
+    // or -1 for the length and the coder of a String
+    private static int[] argumentSources(Class<?>[] types, Annotation[][] annotations) {
+        List<Integer> sources = new ArrayList<>();
+        for (int i = 0; i < types.length; i++) {
+            if (isOffset(annotations[i])) {
+                continue;
+            }
+
+            sources.add(i);
+            if (types[i] == String.class) {
+                StringValue value = findStringValue(annotations[i]);
+                if (value != null && value.length()) sources.add(-1);
+                if (value != null && value.coder()) sources.add(-1);
+            }
+        }
+        return sources.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static boolean isConverted(Class<?>[] types, Annotation[][] annotations, int i) {
+        return types[i] == String.class || findAddress(types[i], annotations[i]) != null
+                || i + 1 < types.length && isOffset(annotations[i + 1]);
+    }
+
+    // Emits moves in such an order that no source is overwritten before it is read.
+    // Arguments keep their relative order, so there are no cycles
+    private void emitMoves(ByteBuffer buf, List<int[]> moves) {
+        while (!moves.isEmpty()) {
+            int[] next = null;
+            for (int[] move : moves) {
+                if (moves.stream().noneMatch(other -> other[1] == move[0])) {
+                    next = move;
+                    break;
+                }
+            }
+            if (next == null) {
+                throw new IllegalStateException("Cyclic argument moves");
+            }
+            emitMoveJavaArg(buf, next[0], next[1]);
+            moves.remove(next);
+        }
+    }
+
+    private static int stackSlots(int[] locations) {
+        return (int) Arrays.stream(locations).filter(location -> location < 0).count();
+    }
+
+    private static StringValue findStringValue(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof StringValue) {
+                return (StringValue) annotation;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isOffset(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Offset) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Direct ByteBuffers are implicitly treated as @Address(position = "position")
+    private static Address findAddress(Class<?> type, Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Address) {
+                return (Address) annotation;
+            }
+        }
+        return ByteBuffer.class.isAssignableFrom(type) ? BYTE_BUFFER_ADDRESS : null;
+    }
+
+    int[] javaLocations(Class<?>[] types) {
+        int[] locations = new int[types.length];
+        int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (isFloatingPoint(types[i])) {
+                locations[i] = fpIndex++ < 8 ? FP_REGISTER : -1 - stackSlot++;
+            } else {
+                locations[i] = index < javaIntRegisters() ? index++ : -1 - stackSlot++;
+            }
+        }
+        return locations;
+    }
+
+    // Same as emitStub, but the last argument is an object that receives the values
+    // of the two integer return registers in the fields listed by @Return.
+    // The argument itself is not passed to the function
+    void emitReturnStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        throw new IllegalArgumentException("@Return is not supported on this platform");
+    }
+
+    // Number of the named Linux system call on this architecture
+    int syscallNumber(String name) {
+        return Syscalls.number(name, false);
+    }
+
+    // Emits a native function that passes up to 6 integer arguments to the given
+    // Linux system call and returns its raw result
+    void emitSyscall(ByteBuffer buf, int number) {
+        throw new IllegalArgumentException("System calls are not supported on this platform");
+    }
+
+    // Calls the native function in a loop over the array arguments described by @Batch:
+    // element arrays for each native argument, an optional result array, and a count
+    void emitBatchStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, boolean output, long address) {
+        throw new IllegalArgumentException("@Batch is not supported on this platform");
+    }
+
+    // Native argument types of a @Batch function, i.e. component types of the input arrays
+    protected static Class<?>[] batchArgTypes(Class<?>[] types, boolean output) {
+        Class<?>[] argTypes = new Class<?>[types.length - (output ? 2 : 1)];
+        for (int i = 0; i < argTypes.length; i++) {
+            argTypes[i] = types[i].getComponentType();
+        }
+        return argTypes;
+    }
+
+    // Emits a native function with the given signature that calls a static Java method
+    // through JNI CallStatic<Type>MethodA. JNIEnv is obtained from JavaVM::GetEnv,
+    // and a pending exception is printed and cleared before returning to native code.
+    // The calling thread must be in the native state, i.e. inside a BLOCKING call
+    void emitUpcallStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Class<?> returnType, long methodId) {
+        throw new IllegalArgumentException("Upcalls are not supported on this platform");
+    }
+
+    // Emits JNI function jmethodID f(JNIEnv* env, jclass cls, jobject method)
+    // that returns FromReflectedMethod(env, method)
+    void emitFromReflectedMethod(ByteBuffer buf) {
+        throw new IllegalArgumentException("Upcalls are not supported on this platform");
+    }
+
+    // Emits native function int f(const char* className, JNINativeMethod* methods),
+    // which registers one native method in the class found by JNI FindClass.
+    // Returns 0 on success; otherwise, prints the pending exception and returns -1.
+    // Must be called in BLOCKING mode, so that FindClass uses the caller's class loader
+    void emitRegisterNatives(ByteBuffer buf, List<Site> sites) {
+        throw new IllegalArgumentException("Upcalls are not supported on this platform");
+    }
+
+    // Same as emitStub, but returns the pointer result of the function as an offset
+    // from the first native argument, or -1 if the function returns NULL
+    void emitReturnOffsetStub(ByteBuffer buf, List<Site> sites, Class<?>[] types, Annotation[][] annotations, long address) {
+        throw new IllegalArgumentException("@ReturnOffset is not supported on this platform");
+    }
+
+    // Atomically increments one of the CallCounters.STRIPES counters at the given address,
+    // chosen by a hash of the current JavaThread. Clobbers only scratch registers
+    void emitCounter(ByteBuffer buf, long counters) {
+        throw new IllegalArgumentException("Call counters are not supported on this platform");
+    }
+
+    // Emits a native function that calls the target with the same arguments, copying
+    // stackSlots words of stack arguments, and records the duration of the call in ticks
+    // to the CallTiming block at data. Return registers of the target are preserved
+    void emitTimingWrapper(ByteBuffer buf, List<Site> sites, long address, long data, long threshold, int stackSlots) {
+        throw new IllegalArgumentException("Call timing is not supported on this platform");
+    }
+
+    boolean supportsLazyLinking() {
+        return false;
+    }
+
+    // Emits the shared resolver, which is installed once as a permanent runtime stub.
+    // It saves Java arguments, calls the native function resolve(key) in the native
+    // thread state, then restores the arguments and jumps to the compiled entry of
+    // the Method*, which is the linked code by then, or the interpreter if linking failed
+    void emitResolverStub(ByteBuffer buf, List<Site> sites, long resolve) {
+        throw new IllegalArgumentException("Lazy linking is not supported on this platform");
+    }
+
+    // Emits the initial code of a lazily linked method: it only passes the key
+    // and the Method* to the shared resolver stub. No frame of this code is ever
+    // on the stack, so it can be invalidated while the resolver is running
+    void emitResolverEntry(ByteBuffer buf, long key, long method, long stub) {
+        throw new IllegalArgumentException("Lazy linking is not supported on this platform");
+    }
+
+    // Jumps to the native function with a direct branch when the function is reachable
+    // from anywhere in the code cache. Otherwise, jumps through a shared trampoline,
+    // or materializes the full address if the trampoline is not reachable either
+    void emitCall(ByteBuffer buf, List<Site> sites, long address) {
+        long target = branchTarget(address);
+        if (target != 0) {
+            emitBranch(buf, sites, target, false);
+        } else {
+            emitCall(buf, address);
+        }
+    }
+
+    // Same as above, but returns to the next instruction after the call
+    void emitLinkedCall(ByteBuffer buf, List<Site> sites, long address) {
+        long target = branchTarget(address);
+        if (target != 0) {
+            emitBranch(buf, sites, target, true);
+        } else {
+            emitIndirectCall(buf, address);
+        }
+    }
+
+    private void emitBranch(ByteBuffer buf, List<Site> sites, long target, boolean link) {
+        int start = buf.position();
+        emitBranch(buf, link);
+        sites.add(new Call(new HotSpotForeignCallTarget(target), start, buf.position() - start, true, null));
+    }
+
+    private long branchTarget(long address) {
+        long range = branchRange();
+        if (!NEAR_CALLS || range == 0) {
+            return 0;
+        } else if (Linker.isReachable(address, range)) {
+            return address;
+        }
+
+        long trampoline = Linker.getTrampoline(address);
+        return Linker.isReachable(trampoline, range) ? trampoline : 0;
+    }
+
+    protected static boolean isFloatingPoint(Class<?> type) {
+        return type == float.class || type == double.class;
+    }
+
+    // POSIX function that returns the address of errno for the current thread
+    protected static long errnoLocation() {
+        String os = System.getProperty("os.name").toLowerCase();
+        return findFunction(os.contains("mac") ? "__error" : "__errno_location");
+    }
+
+    protected static long findFunction(String symbol) {
+        long address = Linker.findAddress(symbol);
+        if (address == 0) {
+            throw new IllegalStateException("Symbol not found: " + symbol);
+        }
+        return address;
+    }
+
+    protected static void checkPrimitive(Class<?>[] types) {
+        for (Class<?> type : types) {
+            if (!type.isPrimitive()) {
+                throw new IllegalArgumentException("Objects cannot be passed in blocking mode: " + type);
+            }
+        }
+    }
+
     protected static int baseOffset(Class<?> type, Annotation[] annotations) {
         if (type.isArray() && type.getComponentType().isPrimitive()) {
             return arrayBaseOffset(type);
@@ -74,7 +492,43 @@ abstract class CallingConvention {
         return meta.getArrayBaseOffset(elementKind);
     }
 
+    // Fields of the @Return object that receive the first and the second return register
+    protected static ResolvedJavaField[] returnFields(Class<?> type, Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof Return) {
+                String[] names = ((Return) annotation).value();
+                if (names.length == 0 || names.length > 2) {
+                    throw new IllegalArgumentException("@Return must list one or two fields");
+                }
+
+                ResolvedJavaField[] fields = new ResolvedJavaField[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    fields[i] = findField(type, names[i]);
+                    JavaKind kind = fields[i].getJavaKind();
+                    if (kind != JavaKind.Long && kind != JavaKind.Int) {
+                        throw new IllegalArgumentException("@Return field must be long or int: " + names[i]);
+                    }
+                }
+                return fields;
+            }
+        }
+        throw new IllegalArgumentException("@Return annotation is missing");
+    }
+
     protected static int fieldOffset(Class<?> type, String fieldName) {
+        return findField(type, fieldName).getOffset();
+    }
+
+    protected static int fieldOffset(Class<?> type, String fieldName, JavaKind kind) {
+        ResolvedJavaField field = findField(type, fieldName);
+        if (field.getJavaKind() != kind) {
+            throw new IllegalArgumentException("Field " + type.getName() + "." + field.getName()
+                    + " must be of type " + kind.getJavaName());
+        }
+        return field.getOffset();
+    }
+
+    private static ResolvedJavaField findField(Class<?> type, String fieldName) {
         MetaAccessProvider meta = JVMCI.getRuntime().getHostJVMCIBackend().getMetaAccess();
         ResolvedJavaField[] fields = meta.lookupJavaType(type).getInstanceFields(true);
         if (fields == null || fields.length == 0) {
@@ -82,12 +536,12 @@ abstract class CallingConvention {
         }
 
         if (fieldName.isEmpty()) {
-            return fields[0].getOffset();
+            return fields[0];
         }
 
         for (ResolvedJavaField field : fields) {
             if (field.getName().equals(fieldName)) {
-                return field.getOffset();
+                return field;
             }
         }
         throw new IllegalArgumentException("No such field: " + type.getName() + "." + fieldName);
@@ -19,15 +19,21 @@
 package one.nalim;
 
 import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
  * Specifies machine code to be associated with a native method.
+ * <p>
+ * Code for several architectures or CPU features may be given as repeated
+ * {@code @Code} annotations. The first one supported by the current CPU is installed;
+ * if there is none, the method is linked according to its {@link Link} annotations.
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
+@Repeatable(Code.List.class)
 public @interface Code {
     /**
      * Machine code for the method implementation
@@ -35,4 +41,24 @@ public @interface Code {
      * Typically, the code should end with a return instruction.
      */
     String value();
+
+    /**
+     * Architecture of this code: amd64, aarch64 or riscv64.
+     * If not specified, the code is not limited to an architecture.
+     */
+    String arch() default "";
+
+    /**
+     * CPU features required by this code, same as {@link Link#cpu()}.
+     */
+    String[] cpu() default {};
+
+    /**
+     * Container of repeated {@code @Code} annotations.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    @interface List {
+        Code[] value();
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR events of the linker. Events are created and committed only in Java code
+ * around linking; linked native calls never emit events themselves.
+ */
+class Events {
+
+    @Name("one.nalim.LibraryLoad")
+    @Label("Native Library Load")
+    @Category("nalim")
+    static class LibraryLoad extends Event {
+        @Label("Library")
+        String library;
+    }
+
+    @Name("one.nalim.SymbolLookup")
+    @Label("Native Symbol Lookup")
+    @Category("nalim")
+    static class SymbolLookup extends Event {
+        @Label("Symbol")
+        String symbol;
+
+        @Label("Address")
+        long address;
+    }
+
+    @Name("one.nalim.CodeInstall")
+    @Label("Code Installation")
+    @Description("Stub or inline code installed into the code cache")
+    @Category("nalim")
+    static class CodeInstall extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Address")
+        long address;
+
+        @Label("Code Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("one.nalim.NativeCall")
+    @Label("Native Call")
+    @Description("Calls of a native method since the previous event, sampled from -Dnalim.timing histograms")
+    @Category("nalim")
+    @Period("1 s")
+    @StackTrace(false)
+    static class NativeCall extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Symbol")
+        String symbol;
+
+        @Label("Calls")
+        long calls;
+
+        @Label("Maximum Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long maxDuration;
+
+        @Label("99th Percentile Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long p99Duration;
+    }
+
+    static void addPeriodicNativeCalls(Runnable hook) {
+        FlightRecorder.addPeriodicEvent(NativeCall.class, hook);
+    }
+
+    static void nativeCall(String method, String symbol, long calls, long maxDuration, long p99Duration) {
+        NativeCall event = new NativeCall();
+        event.method = method;
+        event.symbol = symbol;
+        event.calls = calls;
+        event.maxDuration = maxDuration;
+        event.p99Duration = p99Duration;
+        event.commit();
+    }
+}
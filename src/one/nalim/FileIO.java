@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * Positional file I/O on Linux through direct system calls.
+ * Data is read into and written from heap arrays without an intermediate
+ * direct buffer, and without the locks of {@link java.nio.channels.FileChannel}.
+ * <p>
+ * Operations on heap arrays run in {@link Link.Mode#CRITICAL} mode, since the GC must not
+ * move the array while the kernel copies data. A read that waits for a disk delays safepoints,
+ * so use array variants for data likely to be in page cache or on tmpfs, and variants
+ * taking an off-heap address, which run in {@link Link.Mode#BLOCKING} mode, for cold reads.
+ * Where BLOCKING mode is not available, i.e. on architectures other than amd64,
+ * all system calls run in CRITICAL mode.
+ * Errors are reported as {@link IOException} with the system error message.
+ */
+public class FileIO {
+    public static final int O_RDONLY = 0;
+    public static final int O_WRONLY = 1;
+    public static final int O_RDWR = 2;
+    public static final int O_CREAT = 0x40;
+    public static final int O_TRUNC = 0x200;
+    public static final int O_APPEND = 0x400;
+    public static final int O_CLOEXEC = 0x80000;
+
+    public static final int POSIX_FADV_NORMAL = 0;
+    public static final int POSIX_FADV_RANDOM = 1;
+    public static final int POSIX_FADV_SEQUENTIAL = 2;
+    public static final int POSIX_FADV_WILLNEED = 3;
+    public static final int POSIX_FADV_DONTNEED = 4;
+
+    public static final int PROT_READ = 1;
+    public static final int PROT_WRITE = 2;
+    public static final int PROT_EXEC = 4;
+    public static final int MAP_SHARED = 1;
+    public static final int MAP_PRIVATE = 2;
+
+    public static final int MADV_NORMAL = 0;
+    public static final int MADV_RANDOM = 1;
+    public static final int MADV_SEQUENTIAL = 2;
+    public static final int MADV_WILLNEED = 3;
+    public static final int MADV_DONTNEED = 4;
+
+    private static final int AT_FDCWD = -100;
+
+    /**
+     * Opens a file and returns its descriptor. O_CLOEXEC is always added to flags.
+     */
+    public static int open(String path, int flags, int mode) throws IOException {
+        // Path lookup may block, so the path is copied off-heap for a BLOCKING call
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        long address = unsafe.allocateMemory(bytes.length + 1);
+        try {
+            unsafe.copyMemory(bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, address, bytes.length);
+            unsafe.putByte(address + bytes.length, (byte) 0);
+            return (int) check("open", openat(AT_FDCWD, address, flags | O_CLOEXEC, mode));
+        } finally {
+            unsafe.freeMemory(address);
+        }
+    }
+
+    public static void close(int fd) throws IOException {
+        check("close", close0(fd));
+    }
+
+    /**
+     * Reads up to length bytes at the given file position into array[from, from + length).
+     * Returns the number of bytes read, 0 at the end of file.
+     */
+    public static int pread(int fd, byte[] array, int from, int length, long position) throws IOException {
+        Objects.checkFromIndexSize(from, length, array.length);
+        return (int) check("pread", pread64(fd, array, from, length, position));
+    }
+
+    /**
+     * Writes array[from, from + length) at the given file position.
+     * Returns the number of bytes written.
+     */
+    public static int pwrite(int fd, byte[] array, int from, int length, long position) throws IOException {
+        Objects.checkFromIndexSize(from, length, array.length);
+        return (int) check("pwrite", pwrite64(fd, array, from, length, position));
+    }
+
+    /**
+     * Reads up to length bytes at the given file position into off-heap memory.
+     */
+    public static long pread(int fd, long address, long length, long position) throws IOException {
+        return check("pread", pread64(fd, address, length, position));
+    }
+
+    /**
+     * Writes length bytes of off-heap memory at the given file position.
+     */
+    public static long pwrite(int fd, long address, long length, long position) throws IOException {
+        return check("pwrite", pwrite64(fd, address, length, position));
+    }
+
+    /**
+     * Reads into iovcnt off-heap buffers described by an array of
+     * {@code struct iovec { void* base; size_t len; }} at iov.
+     */
+    public static long preadv(int fd, long iov, int iovcnt, long position) throws IOException {
+        return check("preadv", preadv0(fd, iov, iovcnt, position));
+    }
+
+    /**
+     * Writes iovcnt off-heap buffers described by an array of struct iovec at iov.
+     */
+    public static long pwritev(int fd, long iov, int iovcnt, long position) throws IOException {
+        return check("pwritev", pwritev0(fd, iov, iovcnt, position));
+    }
+
+    public static void fdatasync(int fd) throws IOException {
+        check("fdatasync", fdatasync0(fd));
+    }
+
+    public static void truncate(int fd, long length) throws IOException {
+        check("ftruncate", ftruncate(fd, length));
+    }
+
+    /**
+     * Declares an access pattern for file data, e.g. {@link #POSIX_FADV_SEQUENTIAL}.
+     */
+    public static void fadvise(int fd, long offset, long length, int advice) throws IOException {
+        check("posix_fadvise", fadvise64(fd, offset, length, advice));
+    }
+
+    /**
+     * Maps length bytes of a file at the given offset into memory and returns the address.
+     */
+    public static long mmap(int fd, long offset, long length, int prot, int flags) throws IOException {
+        return check("mmap", mmap0(0, length, prot, flags, fd, offset));
+    }
+
+    public static void munmap(long address, long length) throws IOException {
+        check("munmap", munmap0(address, length));
+    }
+
+    /**
+     * Declares an access pattern for mapped memory, e.g. {@link #MADV_WILLNEED}.
+     */
+    public static void madvise(long address, long length, int advice) throws IOException {
+        check("madvise", madvise0(address, length, advice));
+    }
+
+    // Negative results from -4095 to -1 are error numbers
+    static long check(String function, long result) throws IOException {
+        if (result < 0 && result > -4096) {
+            throw new IOException(function + ": " + VMStructs.readString(strerror((int) -result)));
+        }
+        return result;
+    }
+
+    @Syscall
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long openat(int dirfd, long path, int flags, int mode);
+
+    @Syscall(name = "close")
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long close0(int fd);
+
+    @Syscall
+    private static native long pread64(int fd, byte[] buf, @Offset int from, long count, long position);
+
+    @Syscall
+    private static native long pwrite64(int fd, byte[] buf, @Offset int from, long count, long position);
+
+    @Syscall
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long pread64(int fd, long buf, long count, long position);
+
+    @Syscall
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long pwrite64(int fd, long buf, long count, long position);
+
+    @Syscall(name = "preadv")
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long preadv0(int fd, long iov, int iovcnt, long position);
+
+    @Syscall(name = "pwritev")
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long pwritev0(int fd, long iov, int iovcnt, long position);
+
+    @Syscall(name = "fdatasync")
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long fdatasync0(int fd);
+
+    @Syscall
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long ftruncate(int fd, long length);
+
+    @Syscall
+    private static native long fadvise64(int fd, long offset, long length, int advice);
+
+    @Syscall(name = "mmap")
+    private static native long mmap0(long address, long length, int prot, int flags, int fd, long offset);
+
+    @Syscall(name = "munmap")
+    private static native long munmap0(long address, long length);
+
+    @Syscall(name = "madvise")
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long madvise0(long address, long length, int advice);
+
+    @Link
+    private static native long strerror(int errnum);
+
+    static {
+        Linker.linkClass(FileIO.class);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static one.nalim.AMD64CallingConvention.R10;
+import static one.nalim.AMD64CallingConvention.RAX;
+import static one.nalim.AMD64CallingConvention.RBX;
+import static one.nalim.AMD64CallingConvention.RCX;
+import static one.nalim.AMD64CallingConvention.RDX;
+import static one.nalim.AMD64CallingConvention.movl;
+import static one.nalim.AMD64CallingConvention.movq;
+import static one.nalim.AMD64CallingConvention.movsxd;
+import static one.nalim.AMD64CallingConvention.storel;
+
+/**
+ * Low-level CPU primitives implemented with a few machine instructions each.
+ * Variants are provided for amd64, aarch64 and riscv64 where the hardware has
+ * an equivalent. A method without a variant for the current CPU is left unlinked
+ * and throws {@link UnsatisfiedLinkError} when called.
+ */
+public class Intrinsics {
+
+    /**
+     * Reads the CPU time stamp counter without waiting for preceding instructions:
+     * TSC on amd64, the virtual counter CNTVCT_EL0 on aarch64, the time CSR on riscv64.
+     * The counter frequency is platform specific.
+     */
+    // rdtsc
+    // shl    $0x20,%rdx
+    // or     %rdx,%rax
+    // ret
+    @Code(arch = "amd64", value = "0f31 48c1e220 4809d0 c3")
+    // mrs    x0, cntvct_el0
+    // ret
+    @Code(arch = "aarch64", value = "40e03bd5 c0035fd6")
+    // rdtime a0
+    // ret
+    @Code(arch = "riscv64", value = "732510c0 67800000")
+    public static native long timestamp();
+
+    /**
+     * Same as {@link #timestamp()}, but reads the counter only after all preceding
+     * instructions have completed: rdtscp on amd64, isb before the read on aarch64,
+     * a full fence on riscv64.
+     */
+    // rdtscp
+    // shl    $0x20,%rdx
+    // or     %rdx,%rax
+    // ret
+    @Code(arch = "amd64", value = "0f01f9 48c1e220 4809d0 c3")
+    // isb
+    // mrs    x0, cntvct_el0
+    // ret
+    @Code(arch = "aarch64", value = "df3f03d5 40e03bd5 c0035fd6")
+    // fence  iorw, iorw
+    // rdtime a0
+    // ret
+    @Code(arch = "riscv64", value = "0f00f00f 732510c0 67800000")
+    public static native long timestampSerialized();
+
+    /**
+     * Hints the CPU that the caller is in a spin loop.
+     */
+    // pause
+    // ret
+    @Code(arch = "amd64", value = "f390 c3")
+    // yield
+    // ret
+    @Code(arch = "aarch64", value = "3f2003d5 c0035fd6")
+    // pause
+    // ret
+    @Code(arch = "riscv64", value = "0f000001 67800000")
+    public static native void spinWait();
+
+    /**
+     * Hardware load fence: lfence on amd64, which also waits for preceding
+     * instructions to complete; dmb ishld on aarch64; fence r, rw on riscv64.
+     */
+    // lfence
+    // ret
+    @Code(arch = "amd64", value = "0faee8 c3")
+    // dmb    ishld
+    // ret
+    @Code(arch = "aarch64", value = "bf3903d5 c0035fd6")
+    // fence  r, rw
+    // ret
+    @Code(arch = "riscv64", value = "0f003002 67800000")
+    public static native void loadFence();
+
+    /**
+     * Hardware store fence: sfence on amd64, e.g. after non-temporal stores or clwb;
+     * dmb ishst on aarch64; fence w, w on riscv64.
+     */
+    // sfence
+    // ret
+    @Code(arch = "amd64", value = "0faef8 c3")
+    // dmb    ishst
+    // ret
+    @Code(arch = "aarch64", value = "bf3a03d5 c0035fd6")
+    // fence  w, w
+    // ret
+    @Code(arch = "riscv64", value = "0f001001 67800000")
+    public static native void storeFence();
+
+    /**
+     * Full hardware fence: mfence on amd64, dmb ish on aarch64, fence rw, rw on riscv64.
+     */
+    // mfence
+    // ret
+    @Code(arch = "amd64", value = "0faef0 c3")
+    // dmb    ish
+    // ret
+    @Code(arch = "aarch64", value = "bf3b03d5 c0035fd6")
+    // fence  rw, rw
+    // ret
+    @Code(arch = "riscv64", value = "0f003003 67800000")
+    public static native void fullFence();
+
+    /**
+     * Writes back and invalidates the cache line containing the given address.
+     */
+    // dc     civac, x1
+    // ret
+    @Code(arch = "aarch64", value = "217e0bd5 c0035fd6")
+    public static native void flush(long address);
+
+    /**
+     * Writes back the cache line containing the given address, possibly
+     * keeping it in the cache. Falls back to {@link #flush(long)} on amd64 without clwb.
+     */
+    // dc     cvac, x1
+    // ret
+    @Code(arch = "aarch64", value = "217a0bd5 c0035fd6")
+    public static native void writeBack(long address);
+
+    /**
+     * Returns the number of the CPU the thread is running on,
+     * as written by Linux to the TSC_AUX register.
+     */
+    // rdtscp
+    // mov    %ecx,%eax
+    // and    $0xfff,%eax
+    // ret
+    @Code(arch = "amd64", value = "0f01f9 89c8 25ff0f0000 c3")
+    public static native int currentCpu();
+
+    /**
+     * Prefetches the cache line containing array[index] into all cache levels.
+     */
+    public static native void prefetch(byte[] array, int index);
+
+    /**
+     * Executes cpuid with the given leaf and subleaf (amd64 only).
+     * Stores eax, ebx, ecx and edx into the first 4 elements of regs.
+     */
+    public static native void cpuid(int leaf, int subleaf, int[] regs);
+
+    // Cache line instructions: 0f ae /op [reg] with an optional 66 prefix
+    static final int CLFLUSH = 0x0007;
+    static final int CLFLUSHOPT = 0x6607;
+    static final int CLWB = 0x6606;
+
+    static {
+        for (Method m : Intrinsics.class.getDeclaredMethods()) {
+            if (m.getAnnotationsByType(Code.class).length > 0) {
+                try {
+                    Linker.linkMethod(m);
+                } catch (IllegalArgumentException e) {
+                    // Not available on this CPU
+                }
+            }
+        }
+
+        // Array base offset depends on the object header layout, and Java argument registers
+        // on amd64 differ between Linux/macOS and Windows, so the code is generated here
+        try {
+            if (Linker.isSupported("amd64")) {
+                AMD64CallingConvention cc = (AMD64CallingConvention) CallingConvention.getInstance();
+                int flush = Linker.isSupported("amd64", "flushopt") ? CLFLUSHOPT : CLFLUSH;
+                int writeBack = Linker.isSupported("amd64", "clwb") ? CLWB : flush;
+                installCode("flush", cacheLineAMD64(flush, cc.javaIntArg(0)), long.class);
+                installCode("writeBack", cacheLineAMD64(writeBack, cc.javaIntArg(0)), long.class);
+                installCode("prefetch", prefetchAMD64(cc.javaIntArg(0), cc.javaIntArg(1),
+                        CallingConvention.arrayBaseOffset(byte[].class)), byte[].class, int.class);
+                installCode("cpuid", cpuidAMD64(cc.javaIntArg(0), cc.javaIntArg(1), cc.javaIntArg(2),
+                        CallingConvention.arrayBaseOffset(int[].class)), int.class, int.class, int[].class);
+            } else if (Linker.isSupported("aarch64")) {
+                installCode("prefetch", prefetchAArch64(CallingConvention.arrayBaseOffset(byte[].class)), byte[].class, int.class);
+            }
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void installCode(String name, ByteBuffer code, Class<?>... params) throws NoSuchMethodException {
+        Linker.installCode(Intrinsics.class.getDeclaredMethod(name, params), code.array(), code.position());
+    }
+
+    static ByteBuffer cacheLineAMD64(int instruction, int reg) {
+        ByteBuffer buf = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        if (instruction >>> 8 != 0) {
+            buf.put((byte) (instruction >>> 8));            // 66 prefix
+        }
+        if (reg >= 8) {
+            buf.put((byte) 0x41);                           // rex.b
+        }
+        buf.putShort((short) 0xae0f);                       // clflush/clflushopt/clwb [reg]
+        buf.put((byte) ((instruction & 7) << 3 | (reg & 7)));
+        buf.put((byte) 0xc3);                               // ret
+        return buf;
+    }
+
+    static ByteBuffer prefetchAMD64(int array, int index, int base) {
+        ByteBuffer buf = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        movsxd(buf, index, index);                          // movsxd index, index32
+        if (array >= 8 || index >= 8) {
+            buf.put((byte) (0x40 | (index & 8) >>> 2 | (array & 8) >>> 3));  // rex.xb
+        }
+        buf.putShort((short) 0x180f).put((byte) 0x4c);      // prefetcht0 [array+index+base]
+        buf.put((byte) ((index & 7) << 3 | (array & 7))).put((byte) base);
+        buf.put((byte) 0xc3);                               // ret
+        return buf;
+    }
+
+    private static ByteBuffer prefetchAArch64(int base) {
+        ByteBuffer buf = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(0x8b22c029);                             // add x9, x1, w2, sxtw
+        buf.putInt(0x91000129 | base << 10);                // add x9, x9, #base
+        buf.putInt(0xf9800120);                             // prfm pldl1keep, [x9]
+        buf.putInt(0xd65f03c0);                             // ret
+        return buf;
+    }
+
+    static ByteBuffer cpuidAMD64(int leaf, int subleaf, int regs, int base) {
+        ByteBuffer buf = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        movq(buf, R10, regs);                               // mov r10, regs
+        movl(buf, RAX, leaf);                               // mov eax, leaf
+        movl(buf, RCX, subleaf);                            // mov ecx, subleaf
+        buf.putShort((short) 0xa20f);                       // cpuid
+        storel(buf, R10, base, RAX);                        // mov [r10+base], eax
+        storel(buf, R10, base + 4, RBX);                    // mov [r10+base+4], ebx
+        storel(buf, R10, base + 8, RCX);                    // mov [r10+base+8], ecx
+        storel(buf, R10, base + 12, RDX);                   // mov [r10+base+12], edx
+        buf.put((byte) 0xc3);                               // ret
+        return buf;
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * Linux io_uring instance: a submission queue (SQ) and a completion queue (CQ)
+ * shared with the kernel. Operations are queued by {@code prepare*} methods
+ * and handed to the kernel with a single {@link #submit()} call per batch.
+ * Completions are delivered to {@link Completion} by {@link #poll(Completion)}.
+ * <p>
+ * Rings are memory-mapped and accessed from Java; only {@code io_uring_setup},
+ * {@code io_uring_enter} and {@code io_uring_register} are system calls.
+ * The instance is not thread-safe: SQ methods must be called by one thread,
+ * and CQ methods ({@code poll}, {@code waitCompletions}) by one thread,
+ * possibly a different one. Buffers must be off-heap, e.g. direct ByteBuffers.
+ */
+public class IoUring implements Closeable {
+    public static final byte IORING_OP_NOP = 0;
+    public static final byte IORING_OP_READV = 1;
+    public static final byte IORING_OP_WRITEV = 2;
+    public static final byte IORING_OP_FSYNC = 3;
+    public static final byte IORING_OP_READ_FIXED = 4;
+    public static final byte IORING_OP_WRITE_FIXED = 5;
+    public static final byte IORING_OP_READ = 22;
+    public static final byte IORING_OP_WRITE = 23;
+
+    public static final int IORING_FSYNC_DATASYNC = 1;
+
+    private static final int IORING_ENTER_GETEVENTS = 1;
+    private static final int IORING_REGISTER_BUFFERS = 0;
+    private static final int IORING_UNREGISTER_BUFFERS = 1;
+
+    private static final long IORING_OFF_SQ_RING = 0;
+    private static final long IORING_OFF_CQ_RING = 0x8000000;
+    private static final long IORING_OFF_SQES = 0x10000000;
+
+    private static final int MAP_POPULATE = 0x8000;
+    private static final int EINTR = 4;
+
+    // io_uring_enter may wait in the kernel only if it is linked in BLOCKING mode
+    private static final boolean BLOCKING_WAIT = Linker.isSupported("amd64");
+
+    private static final int PARAMS_SIZE = 120;
+    private static final int SQE_SIZE = 64;
+    private static final int CQE_SIZE = 16;
+
+    private static final long bufferAddressOffset =
+            unsafe.objectFieldOffset(JavaInternals.getPrivateField(Buffer.class, "address"));
+
+    private final int fd;
+    private final long sqRing;
+    private final long sqRingSize;
+    private final long cqRing;
+    private final long cqRingSize;
+    private final long sqes;
+    private final long sqesSize;
+
+    private final long sqHead;
+    private final long sqTail;
+    private final int sqMask;
+    private final int sqEntries;
+    private final long cqHead;
+    private final long cqTail;
+    private final int cqMask;
+    private final long cqes;
+
+    // Local copy of the SQ tail; published to the kernel on submit
+    private int sqLocalTail;
+    private int sqSubmitted;
+
+    private long iovecs;
+
+    /**
+     * Callback for a completed operation.
+     */
+    public interface Completion {
+        /**
+         * @param userData the value passed to the {@code prepare*} method
+         * @param result   the result of the operation, e.g. number of bytes read,
+         *                 or a negative error number
+         * @param flags    IORING_CQE_F_* flags
+         */
+        void complete(long userData, int result, int flags);
+    }
+
+    /**
+     * Creates an io_uring instance with at least the given number of SQ entries.
+     */
+    public IoUring(int entries) throws IOException {
+        long params = unsafe.allocateMemory(PARAMS_SIZE);
+        try {
+            unsafe.setMemory(params, PARAMS_SIZE, (byte) 0);
+            fd = (int) FileIO.check("io_uring_setup", io_uring_setup(entries, params));
+
+            sqEntries = unsafe.getInt(params);
+            int cqEntries = unsafe.getInt(params + 4);
+
+            // struct io_sqring_offsets sq_off
+            long sqOff = params + 40;
+            sqRingSize = unsafe.getInt(sqOff + 24) + sqEntries * 4L;
+            sqRing = mmap(sqRingSize, IORING_OFF_SQ_RING);
+            sqHead = sqRing + unsafe.getInt(sqOff);
+            sqTail = sqRing + unsafe.getInt(sqOff + 4);
+            sqMask = unsafe.getInt(sqRing + unsafe.getInt(sqOff + 8));
+            long sqArray = sqRing + unsafe.getInt(sqOff + 24);
+
+            // struct io_cqring_offsets cq_off
+            long cqOff = params + 80;
+            cqRingSize = unsafe.getInt(cqOff + 20) + cqEntries * (long) CQE_SIZE;
+            cqRing = mmap(cqRingSize, IORING_OFF_CQ_RING);
+            cqHead = cqRing + unsafe.getInt(cqOff);
+            cqTail = cqRing + unsafe.getInt(cqOff + 4);
+            cqMask = unsafe.getInt(cqRing + unsafe.getInt(cqOff + 8));
+            cqes = cqRing + unsafe.getInt(cqOff + 20);
+
+            sqesSize = sqEntries * (long) SQE_SIZE;
+            sqes = mmap(sqesSize, IORING_OFF_SQES);
+
+            // SQ array maps ring slots to SQEs one to one
+            for (int i = 0; i < sqEntries; i++) {
+                unsafe.putInt(sqArray + i * 4L, i);
+            }
+            sqLocalTail = unsafe.getInt(sqTail);
+            sqSubmitted = sqLocalTail;
+        } finally {
+            unsafe.freeMemory(params);
+        }
+    }
+
+    private long mmap(long size, long offset) throws IOException {
+        return FileIO.mmap(fd, offset, size, FileIO.PROT_READ | FileIO.PROT_WRITE, FileIO.MAP_SHARED | MAP_POPULATE);
+    }
+
+    /**
+     * Registers direct buffers for {@link #prepareReadFixed} and {@link #prepareWriteFixed}.
+     * A buffer is identified by its index in the array. The whole capacity is registered.
+     */
+    public void registerBuffers(ByteBuffer... buffers) throws IOException {
+        if (iovecs != 0) {
+            throw new IllegalStateException("Buffers already registered");
+        }
+
+        long iov = unsafe.allocateMemory(buffers.length * 16L);
+        for (int i = 0; i < buffers.length; i++) {
+            unsafe.putLong(iov + i * 16L, address(buffers[i]));
+            unsafe.putLong(iov + i * 16L + 8, buffers[i].capacity());
+        }
+
+        try {
+            FileIO.check("io_uring_register", io_uring_register(fd, IORING_REGISTER_BUFFERS, iov, buffers.length));
+        } catch (IOException e) {
+            unsafe.freeMemory(iov);
+            throw e;
+        }
+        iovecs = iov;
+    }
+
+    public void unregisterBuffers() throws IOException {
+        if (iovecs != 0) {
+            FileIO.check("io_uring_register", io_uring_register(fd, IORING_UNREGISTER_BUFFERS, 0, 0));
+            unsafe.freeMemory(iovecs);
+            iovecs = 0;
+        }
+    }
+
+    /**
+     * Queues a read of length bytes at the file position into off-heap memory.
+     * Returns false if the submission queue is full.
+     */
+    public boolean prepareRead(int fd, long address, int length, long position, long userData) {
+        return prepare(IORING_OP_READ, fd, address, length, position, 0, 0, userData);
+    }
+
+    /**
+     * Queues a read into the remaining part of a direct buffer.
+     * The buffer position is not updated.
+     */
+    public boolean prepareRead(int fd, ByteBuffer buffer, long position, long userData) {
+        return prepareRead(fd, address(buffer) + buffer.position(), buffer.remaining(), position, userData);
+    }
+
+    public boolean prepareWrite(int fd, long address, int length, long position, long userData) {
+        return prepare(IORING_OP_WRITE, fd, address, length, position, 0, 0, userData);
+    }
+
+    public boolean prepareWrite(int fd, ByteBuffer buffer, long position, long userData) {
+        return prepareWrite(fd, address(buffer) + buffer.position(), buffer.remaining(), position, userData);
+    }
+
+    /**
+     * Queues a read into a region of a registered buffer with the given index.
+     */
+    public boolean prepareReadFixed(int fd, long address, int length, long position, int bufIndex, long userData) {
+        return prepare(IORING_OP_READ_FIXED, fd, address, length, position, 0, bufIndex, userData);
+    }
+
+    public boolean prepareWriteFixed(int fd, long address, int length, long position, int bufIndex, long userData) {
+        return prepare(IORING_OP_WRITE_FIXED, fd, address, length, position, 0, bufIndex, userData);
+    }
+
+    /**
+     * Queues fsync, or fdatasync if flags contain {@link #IORING_FSYNC_DATASYNC}.
+     */
+    public boolean prepareFsync(int fd, int flags, long userData) {
+        return prepare(IORING_OP_FSYNC, fd, 0, 0, 0, flags, 0, userData);
+    }
+
+    public boolean prepareNop(long userData) {
+        return prepare(IORING_OP_NOP, -1, 0, 0, 0, 0, 0, userData);
+    }
+
+    /**
+     * Queues an arbitrary operation. Returns false if the submission queue is full.
+     */
+    public boolean prepare(byte opcode, int fd, long address, int length, long offset,
+                           int opFlags, int bufIndex, long userData) {
+        int tail = sqLocalTail;
+        if (tail - unsafe.getIntVolatile(null, sqHead) >= sqEntries) {
+            return false;
+        }
+
+        long sqe = sqes + (tail & sqMask) * (long) SQE_SIZE;
+        unsafe.setMemory(sqe, SQE_SIZE, (byte) 0);
+        unsafe.putByte(sqe, opcode);
+        unsafe.putInt(sqe + 4, fd);
+        unsafe.putLong(sqe + 8, offset);
+        unsafe.putLong(sqe + 16, address);
+        unsafe.putInt(sqe + 24, length);
+        unsafe.putInt(sqe + 28, opFlags);
+        unsafe.putLong(sqe + 32, userData);
+        unsafe.putShort(sqe + 40, (short) bufIndex);
+
+        sqLocalTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * Submits all prepared operations with one system call.
+     * Returns the number of operations consumed by the kernel.
+     */
+    public int submit() throws IOException {
+        return submitAndWait(0);
+    }
+
+    /**
+     * Submits prepared operations and waits until at least minComplete
+     * operations are completed.
+     */
+    public int submitAndWait(int minComplete) throws IOException {
+        if (!BLOCKING_WAIT && minComplete > 0) {
+            int submitted = submit();
+            waitCompletions(minComplete);
+            return submitted;
+        }
+
+        int toSubmit = publishTail();
+        if (toSubmit == 0 && minComplete == 0) {
+            return 0;
+        }
+        int flags = minComplete > 0 ? IORING_ENTER_GETEVENTS : 0;
+        int submitted = (int) FileIO.check("io_uring_enter", io_uring_enter(fd, toSubmit, minComplete, flags, 0, 0));
+        sqSubmitted += submitted;
+        return submitted;
+    }
+
+    // Release store makes SQE contents visible to the kernel before the new tail
+    private int publishTail() {
+        unsafe.putIntVolatile(null, sqTail, sqLocalTail);
+        return sqLocalTail - sqSubmitted;
+    }
+
+    /**
+     * Blocks until at least minComplete completions are available, without submitting.
+     * May be called from a dedicated completion thread.
+     */
+    public void waitCompletions(int minComplete) throws IOException {
+        while (completions() < minComplete) {
+            // A CRITICAL call must not wait in the kernel, since it would hold off safepoints:
+            // reap completions without waiting and yield the CPU between attempts
+            long result = io_uring_enter(fd, 0, BLOCKING_WAIT ? minComplete : 0, IORING_ENTER_GETEVENTS, 0, 0);
+            if (result != -EINTR) {
+                FileIO.check("io_uring_enter", result);
+            }
+            if (!BLOCKING_WAIT && completions() < minComplete) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of completions ready to be polled.
+     */
+    public int completions() {
+        return unsafe.getIntVolatile(null, cqTail) - unsafe.getInt(cqHead);
+    }
+
+    /**
+     * Passes all available completions to the callback without blocking.
+     * Returns the number of completions processed.
+     */
+    public int poll(Completion completion) {
+        int head = unsafe.getInt(cqHead);
+        int tail = unsafe.getIntVolatile(null, cqTail);
+
+        for (int i = head; i != tail; i++) {
+            long cqe = cqes + (i & cqMask) * (long) CQE_SIZE;
+            completion.complete(unsafe.getLong(cqe), unsafe.getInt(cqe + 8), unsafe.getInt(cqe + 12));
+        }
+
+        // Release the slots only after CQEs have been read
+        unsafe.putIntVolatile(null, cqHead, tail);
+        return tail - head;
+    }
+
+    @Override
+    public void close() throws IOException {
+        unregisterBuffers();
+        FileIO.munmap(sqes, sqesSize);
+        FileIO.munmap(cqRing, cqRingSize);
+        FileIO.munmap(sqRing, sqRingSize);
+        FileIO.close(fd);
+    }
+
+    private static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
+        }
+        return unsafe.getLong(buffer, bufferAddressOffset);
+    }
+
+    @Syscall
+    private static native long io_uring_setup(int entries, long params);
+
+    @Syscall
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long io_uring_enter(int fd, int toSubmit, int minComplete, int flags, long sig, long sigsz);
+
+    @Syscall
+    @Link(arch = "amd64", mode = Link.Mode.BLOCKING)
+    @Link
+    private static native long io_uring_register(int fd, int opcode, long arg, int nrArgs);
+
+    static {
+        Linker.linkClass(IoUring.class);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * The invocation interface of the running JVM. Upcall stubs use it
+ * to find JNIEnv of the calling thread.
+ */
+class JavaVM {
+    static final int JNI_VERSION_1_6 = 0x10006;
+
+    // Indices in the JNI function tables
+    static final int GET_ENV = 6;
+    static final int FIND_CLASS = 6;
+    static final int FROM_REFLECTED_METHOD = 7;
+    static final int EXCEPTION_DESCRIBE = 16;
+    static final int REGISTER_NATIVES = 215;
+
+    static final long vm;
+    static final long getEnv;
+
+    static {
+        Linker.linkClass(JavaVM.class);
+
+        long[] vmBuf = new long[1];
+        int[] nVMs = new int[1];
+        if (JNI_GetCreatedJavaVMs(vmBuf, 1, nVMs) != 0 || nVMs[0] == 0) {
+            throw new IllegalStateException("JavaVM not found");
+        }
+        vm = vmBuf[0];
+        getEnv = unsafe.getAddress(unsafe.getAddress(vm) + GET_ENV * 8);
+    }
+
+    @Link
+    private static native int JNI_GetCreatedJavaVMs(long[] vmBuf, int bufLen, int[] nVMs);
+
+    // Index of CallStatic<Type>MethodA in the JNI function table
+    static int callStaticMethodA(Class<?> returnType) {
+        if (returnType == boolean.class) {
+            return 119;
+        } else if (returnType == byte.class) {
+            return 122;
+        } else if (returnType == char.class) {
+            return 125;
+        } else if (returnType == short.class) {
+            return 128;
+        } else if (returnType == int.class) {
+            return 131;
+        } else if (returnType == long.class) {
+            return 134;
+        } else if (returnType == float.class) {
+            return 137;
+        } else if (returnType == double.class) {
+            return 140;
+        } else if (returnType == void.class) {
+            return 143;
+        }
+        throw new IllegalArgumentException("Upcall must return a primitive type: " + returnType);
+    }
+}
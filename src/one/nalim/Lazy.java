@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Defers linking of {@code @Link} and {@code @Syscall} methods until the first call.
+ * <p>
+ * {@code Linker.linkClass} installs only a small resolver stub for such a method.
+ * On the first call, the stub looks up the symbol, installs the real code
+ * and calls it with the same arguments, so startup time and code cache
+ * are spent only on functions that are actually used.
+ * <p>
+ * When placed on a class, applies to all its methods; a method may opt out
+ * with {@code @Lazy(false)}. Methods with non-primitive parameters and
+ * platforms other than amd64 are always linked eagerly, as is everything
+ * when running with {@code -Dnalim.eager=true}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface Lazy {
+    boolean value() default true;
+}
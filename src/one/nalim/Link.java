@@ -19,15 +19,20 @@
 package one.nalim;
 
 import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * Denotes a method for linking with the native code. 
+ * Denotes a method for linking with the native code.
+ * <p>
+ * A method may have several {@code @Link} variants for different architectures
+ * or CPU features. The first variant supported by the current CPU is linked.
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
+@Repeatable(Link.List.class)
 public @interface Link {
     /**
      * Alternative name of the native function.
@@ -41,4 +46,47 @@ public @interface Link {
      * for translating arguments according to the native ABI.
      */
     boolean naked() default false;
+
+    /**
+     * Defines how the native function interacts with the JVM during the call.
+     */
+    Mode mode() default Mode.CRITICAL;
+
+    /**
+     * Architecture of this variant: amd64, aarch64 or riscv64.
+     * If not specified, the variant is not limited to an architecture.
+     */
+    String arch() default "";
+
+    /**
+     * CPU features required by this variant, named after JVMCI CPUFeature
+     * constants in any case, e.g. "avx2", "avx512f", "asimd" or "sve".
+     */
+    String[] cpu() default {};
+
+    enum Mode {
+        /**
+         * The function is called directly without changing the thread state.
+         * It must return quickly, since the thread does not reach a safepoint
+         * until the function returns.
+         */
+        CRITICAL,
+
+        /**
+         * The thread switches to the native state for the duration of the call,
+         * so that safepoints and GC can proceed while the function is running.
+         * The thread checks for a pending safepoint on return.
+         * Objects cannot be passed to such functions, since they may move during the call.
+         */
+        BLOCKING
+    }
+
+    /**
+     * Container of repeated {@code @Link} variants.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    @interface List {
+        Link[] value();
+    }
 }
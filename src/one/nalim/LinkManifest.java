@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description of the native methods of a class, as needed for linking.
+ * <p>
+ * {@link LinkProcessor} writes it at compile time next to the class file as
+ * {@code ClassName.nalim}, with @Code already decoded and repeatable variants
+ * flattened, so that {@code Linker.linkClass} neither scans all methods
+ * nor parses method annotations to find out what to link. Parameter annotations,
+ * which shape the stub, are still read when it is generated. Without the manifest,
+ * the same entries are built from annotations at run time.
+ */
+class LinkManifest {
+    static final String EXTENSION = ".nalim";
+
+    private static final int MAGIC = 0x6e616c6d;  // nalm
+    private static final int VERSION = 1;
+
+    String library = "";
+    final List<Entry> entries = new ArrayList<>();
+
+    static class Entry {
+        String name;
+        String descriptor;
+        final List<CodeVariant> codes = new ArrayList<>();
+        final List<LinkVariant> links = new ArrayList<>();
+        boolean syscall;
+        int syscallNumber = -1;
+        String syscallName;
+        boolean lazy;
+
+        // Same entry as LinkProcessor writes, built from annotations at run time
+        static Entry of(Method m, Lazy classLazy) {
+            Entry entry = new Entry();
+            entry.name = m.getName();
+            entry.descriptor = MethodType.methodType(m.getReturnType(), m.getParameterTypes()).toMethodDescriptorString();
+
+            for (Code code : m.getAnnotationsByType(Code.class)) {
+                entry.codes.add(new CodeVariant(code.arch(), code.cpu(), parseHex(code.value())));
+            }
+            for (Link link : m.getAnnotationsByType(Link.class)) {
+                entry.links.add(new LinkVariant(link.arch(), link.cpu(), link.name(), link.naked(), link.mode()));
+            }
+
+            Syscall syscall = m.getAnnotation(Syscall.class);
+            if (syscall != null) {
+                entry.syscall = true;
+                entry.syscallNumber = syscall.value();
+                entry.syscallName = syscall.name().isEmpty() ? m.getName() : syscall.name();
+            }
+
+            Lazy lazy = m.isAnnotationPresent(Lazy.class) ? m.getAnnotation(Lazy.class) : classLazy;
+            entry.lazy = lazy != null && lazy.value();
+            return entry;
+        }
+    }
+
+    static class CodeVariant {
+        final String arch;
+        final String[] cpu;
+        final byte[] code;
+
+        CodeVariant(String arch, String[] cpu, byte[] code) {
+            this.arch = arch;
+            this.cpu = cpu;
+            this.code = code;
+        }
+    }
+
+    static class LinkVariant {
+        final String arch;
+        final String[] cpu;
+        final String name;
+        final boolean naked;
+        final Link.Mode mode;
+
+        LinkVariant(String arch, String[] cpu, String name, boolean naked, Link.Mode mode) {
+            this.arch = arch;
+            this.cpu = cpu;
+            this.name = name;
+            this.naked = naked;
+            this.mode = mode;
+        }
+    }
+
+    // Returns the manifest generated for the class, or null if there is none
+    static LinkManifest load(Class<?> c) throws IOException {
+        String name = c.getName();
+        try (InputStream in = c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + EXTENSION)) {
+            return in == null ? null : read(in);
+        }
+    }
+
+    static LinkManifest read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Unsupported link manifest format");
+        }
+
+        LinkManifest manifest = new LinkManifest();
+        manifest.library = in.readUTF();
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            Entry entry = new Entry();
+            entry.name = in.readUTF();
+            entry.descriptor = in.readUTF();
+            for (int n = in.readUnsignedByte(); n > 0; n--) {
+                String arch = in.readUTF();
+                String[] cpu = readStrings(in);
+                byte[] code = new byte[in.readInt()];
+                in.readFully(code);
+                entry.codes.add(new CodeVariant(arch, cpu, code));
+            }
+            for (int n = in.readUnsignedByte(); n > 0; n--) {
+                String arch = in.readUTF();
+                String[] cpu = readStrings(in);
+                entry.links.add(new LinkVariant(arch, cpu, in.readUTF(), in.readBoolean(),
+                        Link.Mode.valueOf(in.readUTF())));
+            }
+            entry.syscall = in.readBoolean();
+            if (entry.syscall) {
+                entry.syscallNumber = in.readInt();
+                entry.syscallName = in.readUTF();
+            }
+            entry.lazy = in.readBoolean();
+            manifest.entries.add(entry);
+        }
+        return manifest;
+    }
+
+    void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(library);
+        out.writeShort(entries.size());
+        for (Entry entry : entries) {
+            out.writeUTF(entry.name);
+            out.writeUTF(entry.descriptor);
+            out.writeByte(entry.codes.size());
+            for (CodeVariant variant : entry.codes) {
+                out.writeUTF(variant.arch);
+                writeStrings(out, variant.cpu);
+                out.writeInt(variant.code.length);
+                out.write(variant.code);
+            }
+            out.writeByte(entry.links.size());
+            for (LinkVariant variant : entry.links) {
+                out.writeUTF(variant.arch);
+                writeStrings(out, variant.cpu);
+                out.writeUTF(variant.name);
+                out.writeBoolean(variant.naked);
+                out.writeUTF(variant.mode.name());
+            }
+            out.writeBoolean(entry.syscall);
+            if (entry.syscall) {
+                out.writeInt(entry.syscallNumber);
+                out.writeUTF(entry.syscallName);
+            }
+            out.writeBoolean(entry.lazy);
+        }
+        out.flush();
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readUnsignedByte()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeByte(strings.length);
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    static byte[] parseHex(String hex) {
+        hex = hex.replaceAll("\\s+", "");
+
+        int length = hex.length();
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Invalid hex string");
+        }
+
+        byte[] code = new byte[length / 2];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return code;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compile-time checks of native method signatures and generation of link manifests.
+ * <p>
+ * Run javac with {@code -processor one.nalim.LinkProcessor} and nalim.jar on the
+ * processor path. Every {@code @Link}, {@code @Code} and {@code @Syscall} method is checked
+ * against the rules the Linker enforces at run time, e.g. parameter types,
+ * placement of {@code @Offset}, {@code @LastError} and {@code @Return}, fields named
+ * by {@code @FieldOffset} and {@code @Address}, {@code @Batch} and {@code @ReturnOffset}
+ * signatures, the link mode and the @Code hex string; unknown CPU feature names are warnings.
+ * For each class with such methods, a {@link LinkManifest} is written next to the class file,
+ * which {@code Linker.linkClass} uses instead of scanning methods and parsing @Code.
+ */
+@SupportedAnnotationTypes({
+        "one.nalim.Link", "one.nalim.Link.List", "one.nalim.Code", "one.nalim.Code.List", "one.nalim.Syscall"
+})
+public class LinkProcessor extends AbstractProcessor {
+    private static final Set<String> ARCHITECTURES = Set.of("", "amd64", "aarch64", "riscv64");
+
+    // JVMCI CPUFeature constants known at the time of writing. jdk.internal.vm.ci is not
+    // resolved in the compiler's VM, so the names cannot be looked up, and newer JDKs
+    // may add more: an unknown name is therefore a warning, not an error
+    private static final Map<String, Set<String>> CPU_FEATURES = Map.of(
+            "amd64", Set.of("cx8", "cmov", "fxsr", "ht", "mmx", "amd_3dnow_prefetch", "sse", "sse2", "sse3",
+                    "ssse3", "sse4a", "sse4_1", "sse4_2", "popcnt", "lzcnt", "tsc", "tscinv", "tscinv_bit",
+                    "avx", "avx2", "aes", "erms", "clmul", "bmi1", "bmi2", "rtm", "adx", "avx512f", "avx512dq",
+                    "avx512pf", "avx512er", "avx512cd", "avx512bw", "avx512vl", "sha", "fma", "vzeroupper",
+                    "avx512_vpopcntdq", "avx512_vpclmulqdq", "avx512_vaes", "avx512_vnni", "flush", "flushopt",
+                    "clwb", "avx512_vbmi2", "avx512_vbmi", "hv", "serialize", "rdtscp", "rdpid", "fsrm", "gfni",
+                    "avx512_bitalg", "f16c", "pku", "ospke", "cet_ibt", "cet_ss", "avx512_ifma", "avx512_fp16",
+                    "avx_ifma", "apx_f", "sha512"),
+            "aarch64", Set.of("fp", "asimd", "evtstrm", "aes", "pmull", "sha1", "sha2", "crc32", "lse", "dcpop",
+                    "sha3", "sha512", "sve", "paca", "svebitperm", "sve2", "fphp", "asimdhp", "stxr_prefetch",
+                    "a53mac"),
+            "riscv64", Set.of("i", "m", "a", "f", "d", "c", "v")
+    );
+
+    private final Set<String> processed = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                Element type = element.getEnclosingElement();
+                if (element.getKind() != ElementKind.METHOD) {
+                    error(element, "Only methods can be linked");
+                } else if (processed.add(type.toString())) {
+                    processClass((TypeElement) type);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void processClass(TypeElement type) {
+        LinkManifest manifest = new LinkManifest();
+        Library library = type.getAnnotation(Library.class);
+        if (library != null) {
+            manifest.library = library.value();
+        }
+
+        boolean valid = true;
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (method.getAnnotationsByType(Link.class).length > 0 || method.getAnnotationsByType(Code.class).length > 0
+                    || method.getAnnotation(Syscall.class) != null) {
+                LinkManifest.Entry entry = createEntry(type, method);
+                if (entry != null) {
+                    manifest.entries.add(entry);
+                } else {
+                    valid = false;
+                }
+            }
+        }
+
+        if (valid) {
+            writeManifest(type, manifest);
+        }
+    }
+
+    // Returns null if the method does not pass the checks
+    private LinkManifest.Entry createEntry(TypeElement type, ExecutableElement method) {
+        int errors = 0;
+        Set<Modifier> modifiers = method.getModifiers();
+        if (!modifiers.contains(Modifier.STATIC) || !modifiers.contains(Modifier.NATIVE)) {
+            errors += error(method, "Method must be static native");
+        }
+
+        TypeMirror returnType = method.getReturnType();
+        if (!returnType.getKind().isPrimitive() && returnType.getKind() != TypeKind.VOID) {
+            errors += error(method, "Native method must return a primitive type or void");
+        }
+
+        LinkManifest.Entry entry = new LinkManifest.Entry();
+        entry.name = method.getSimpleName().toString();
+        entry.descriptor = descriptor(method);
+
+        for (Code code : method.getAnnotationsByType(Code.class)) {
+            errors += checkArch(method, code.arch());
+            checkCpu(method, code.arch(), code.cpu());
+            if (!code.value().matches("(\\s*[0-9A-Fa-f]\\s*[0-9A-Fa-f])*\\s*")) {
+                errors += error(method, "Invalid hex string in @Code");
+            } else {
+                entry.codes.add(new LinkManifest.CodeVariant(code.arch(), code.cpu(), LinkManifest.parseHex(code.value())));
+            }
+        }
+
+        Syscall syscall = method.getAnnotation(Syscall.class);
+        Link[] links = method.getAnnotationsByType(Link.class);
+        if (links.length == 0) {
+            errors += checkStub(method, Link.Mode.CRITICAL, false);
+        }
+
+        // Variants that build the same kind of stub are checked once
+        Set<String> stubs = new HashSet<>();
+        boolean objectArgs = hasObjectArgs(method);
+        for (Link link : links) {
+            errors += checkArch(method, link.arch());
+            checkCpu(method, link.arch(), link.cpu());
+            if (link.naked() && link.mode() != Link.Mode.CRITICAL) {
+                errors += error(method, "Naked method cannot use " + link.mode() + " mode");
+            } else if (objectArgs && link.mode() != Link.Mode.CRITICAL) {
+                errors += error(method, "Objects cannot be passed in " + link.mode() + " mode");
+            } else {
+                // System calls are never naked, see Linker.linkSyscall
+                boolean naked = link.naked() && syscall == null;
+                if (stubs.add(link.mode() + (naked ? " naked" : ""))) {
+                    errors += checkStub(method, link.mode(), naked);
+                }
+            }
+            entry.links.add(new LinkManifest.LinkVariant(link.arch(), link.cpu(), link.name(), link.naked(), link.mode()));
+        }
+
+        if (syscall != null) {
+            if (method.getParameters().size() > 6) {
+                errors += error(method, "System call takes at most 6 arguments");
+            }
+            for (VariableElement parameter : method.getParameters()) {
+                TypeKind kind = parameter.asType().getKind();
+                if (kind == TypeKind.FLOAT || kind == TypeKind.DOUBLE) {
+                    errors += error(parameter, "System call arguments must be integers");
+                }
+            }
+            entry.syscall = true;
+            entry.syscallNumber = syscall.value();
+            entry.syscallName = syscall.name().isEmpty() ? entry.name : syscall.name();
+        }
+
+        errors += checkParameters(method);
+
+        Lazy lazy = method.getAnnotation(Lazy.class) != null ? method.getAnnotation(Lazy.class) : type.getAnnotation(Lazy.class);
+        entry.lazy = lazy != null && lazy.value();
+        return errors == 0 ? entry : null;
+    }
+
+    // Same checks as Linker.linkMethod does when choosing the stub for the given variant
+    private int checkStub(ExecutableElement method, Link.Mode mode, boolean naked) {
+        Batch batch = method.getAnnotation(Batch.class);
+        if (batch != null) {
+            return checkBatch(method, batch, mode, naked);
+        } else if (naked) {
+            return 0;
+        }
+
+        List<? extends VariableElement> parameters = method.getParameters();
+        if (method.getAnnotation(ReturnOffset.class) != null) {
+            if (mode != Link.Mode.CRITICAL) {
+                return error(method, "@ReturnOffset is not supported in " + mode + " mode");
+            }
+            TypeKind first = parameters.isEmpty() ? null : parameters.get(0).asType().getKind();
+            if (first == null || first == TypeKind.FLOAT || first == TypeKind.DOUBLE
+                    || method.getReturnType().getKind() != TypeKind.LONG) {
+                return error(method, "@ReturnOffset method must take a pointer and return long");
+            }
+        } else if (hasParameterAnnotation(method, LastError.class)) {
+            if (mode != Link.Mode.CRITICAL) {
+                return error(method, "@LastError is not supported in " + mode + " mode");
+            }
+        } else if (hasParameterAnnotation(method, Return.class)) {
+            if (mode != Link.Mode.CRITICAL) {
+                return error(method, "@Return is not supported in " + mode + " mode");
+            }
+        }
+        return 0;
+    }
+
+    // Same as Linker.checkBatchType
+    private int checkBatch(ExecutableElement method, Batch batch, Link.Mode mode, boolean naked) {
+        if (naked || mode != Link.Mode.CRITICAL) {
+            return error(method, "@Batch method must be linked in CRITICAL mode");
+        }
+
+        List<? extends VariableElement> parameters = method.getParameters();
+        int arrays = parameters.size() - 1;
+        if (arrays < (batch.output() ? 1 : 0) || parameters.get(arrays).asType().getKind() != TypeKind.INT
+                || method.getReturnType().getKind() != TypeKind.VOID) {
+            return error(method, "@Batch method must be void and end with int count");
+        }
+        for (int i = 0; i < arrays; i++) {
+            TypeMirror type = parameters.get(i).asType();
+            if (type.getKind() != TypeKind.ARRAY || !((ArrayType) type).getComponentType().getKind().isPrimitive()) {
+                return error(parameters.get(i), "@Batch arguments must be primitive arrays");
+            }
+        }
+        return 0;
+    }
+
+    private int checkParameters(ExecutableElement method) {
+        int errors = 0;
+        List<? extends VariableElement> parameters = method.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            VariableElement parameter = parameters.get(i);
+            TypeMirror type = parameter.asType();
+            boolean last = i == parameters.size() - 1;
+
+            if (type.getKind() == TypeKind.ARRAY && !((ArrayType) type).getComponentType().getKind().isPrimitive()) {
+                errors += error(parameter, "Only arrays of primitive types can be passed");
+            }
+
+            if (parameter.getAnnotation(Offset.class) != null) {
+                TypeMirror previous = i > 0 ? parameters.get(i - 1).asType() : null;
+                if (type.getKind() != TypeKind.INT || previous == null || previous.getKind() != TypeKind.ARRAY
+                        || parameters.get(i - 1).getAnnotation(Offset.class) != null) {
+                    errors += error(parameter, "@Offset must be an int parameter following a primitive array");
+                }
+            }
+
+            if (parameter.getAnnotation(LastError.class) != null && (!last || !type.toString().equals("int[]"))) {
+                errors += error(parameter, "@LastError must be the last int[] parameter");
+            }
+
+            if (parameter.getAnnotation(Return.class) != null && (!last || type.getKind() != TypeKind.DECLARED)) {
+                errors += error(parameter, "@Return must be the last object parameter");
+            }
+
+            if (parameter.getAnnotation(StringValue.class) != null && !isString(type)) {
+                errors += error(parameter, "@StringValue applies only to String parameters");
+            }
+
+            FieldOffset fieldOffset = parameter.getAnnotation(FieldOffset.class);
+            if (fieldOffset != null) {
+                if (type.getKind() != TypeKind.DECLARED || isString(type)) {
+                    errors += error(parameter, "@FieldOffset applies only to object parameters");
+                } else if (!fieldOffset.value().isEmpty() && findField(type, fieldOffset.value()) == null) {
+                    errors += error(parameter, "Field not found: " + fieldOffset.value());
+                }
+            }
+
+            Address address = parameter.getAnnotation(Address.class);
+            if (address != null) {
+                if (type.getKind() != TypeKind.DECLARED || isString(type)) {
+                    errors += error(parameter, "@Address applies only to object parameters");
+                } else {
+                    errors += checkField(parameter, type, address.value(), TypeKind.LONG);
+                    if (!address.position().isEmpty()) {
+                        errors += checkField(parameter, type, address.position(), TypeKind.INT);
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    private int checkField(Element parameter, TypeMirror type, String name, TypeKind kind) {
+        VariableElement field = findField(type, name);
+        if (field == null) {
+            return error(parameter, "Field not found: " + name);
+        } else if (field.asType().getKind() != kind) {
+            return error(parameter, "Field " + name + " must be " + kind.name().toLowerCase());
+        }
+        return 0;
+    }
+
+    // Instance field declared in the class or its superclasses
+    private VariableElement findField(TypeMirror type, String name) {
+        while (type.getKind() == TypeKind.DECLARED) {
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            for (VariableElement field : ElementFilter.fieldsIn(element.getEnclosedElements())) {
+                if (field.getSimpleName().contentEquals(name) && !field.getModifiers().contains(Modifier.STATIC)) {
+                    return field;
+                }
+            }
+            type = element.getSuperclass();
+        }
+        return null;
+    }
+
+    private int checkArch(Element method, String arch) {
+        return ARCHITECTURES.contains(arch.toLowerCase()) ? 0 : error(method, "Unknown architecture: " + arch);
+    }
+
+    // Linker.isSupported never matches a misspelled feature, so the variant would be silently skipped
+    private void checkCpu(Element method, String arch, String[] cpu) {
+        for (String feature : cpu) {
+            String name = feature.toLowerCase();
+            Set<String> known = CPU_FEATURES.get(arch.toLowerCase());
+            boolean valid = known != null ? known.contains(name)
+                    : CPU_FEATURES.values().stream().anyMatch(features -> features.contains(name));
+            if (!valid) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "Unknown CPU feature: " + feature + ", the variant is used only if the JVM reports it", method);
+            }
+        }
+    }
+
+    private static boolean hasParameterAnnotation(ExecutableElement method, Class<? extends Annotation> annotation) {
+        for (VariableElement parameter : method.getParameters()) {
+            if (parameter.getAnnotation(annotation) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same as Linker.hasObjectArgs
+    private static boolean hasObjectArgs(ExecutableElement method) {
+        for (VariableElement parameter : method.getParameters()) {
+            if (!parameter.asType().getKind().isPrimitive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isString(TypeMirror type) {
+        return type.toString().equals("java.lang.String");
+    }
+
+    private String descriptor(ExecutableElement method) {
+        StringBuilder sb = new StringBuilder("(");
+        for (VariableElement parameter : method.getParameters()) {
+            appendDescriptor(sb, parameter.asType());
+        }
+        appendDescriptor(sb.append(')'), method.getReturnType());
+        return sb.toString();
+    }
+
+    private void appendDescriptor(StringBuilder sb, TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN: sb.append('Z'); break;
+            case BYTE: sb.append('B'); break;
+            case CHAR: sb.append('C'); break;
+            case SHORT: sb.append('S'); break;
+            case INT: sb.append('I'); break;
+            case LONG: sb.append('J'); break;
+            case FLOAT: sb.append('F'); break;
+            case DOUBLE: sb.append('D'); break;
+            case VOID: sb.append('V'); break;
+            case ARRAY:
+                appendDescriptor(sb.append('['), ((ArrayType) type).getComponentType());
+                break;
+            default:
+                TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+                TypeElement element = (TypeElement) ((DeclaredType) erased).asElement();
+                String name = processingEnv.getElementUtils().getBinaryName(element).toString();
+                sb.append('L').append(name.replace('.', '/')).append(';');
+        }
+    }
+
+    private void writeManifest(TypeElement type, LinkManifest manifest) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = binaryName.substring(binaryName.lastIndexOf('.') + 1);
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                    pkg.getQualifiedName(), simpleName + LinkManifest.EXTENSION, type);
+            try (OutputStream out = file.openOutputStream()) {
+                manifest.write(out);
+            }
+        } catch (IOException e) {
+            error(type, "Cannot write link manifest: " + e);
+        }
+    }
+
+    private int error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return 1;
+    }
+}
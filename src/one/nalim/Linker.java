@@ -18,21 +18,33 @@
 
 package one.nalim;
 
+import jdk.vm.ci.code.Architecture;
+import jdk.vm.ci.code.InstalledCode;
 import jdk.vm.ci.code.site.DataPatch;
 import jdk.vm.ci.code.site.Site;
 import jdk.vm.ci.hotspot.HotSpotCompiledCode;
 import jdk.vm.ci.hotspot.HotSpotCompiledNmethod;
+import jdk.vm.ci.hotspot.HotSpotJVMCIRuntime;
 import jdk.vm.ci.hotspot.HotSpotResolvedJavaMethod;
+import jdk.vm.ci.hotspot.HotSpotVMConfigAccess;
 import jdk.vm.ci.meta.Assumptions;
 import jdk.vm.ci.meta.ResolvedJavaMethod;
 import jdk.vm.ci.runtime.JVMCI;
 import jdk.vm.ci.runtime.JVMCIBackend;
 import jdk.vm.ci.runtime.JVMCICompiler;
 
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -40,64 +52,212 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Linker {
     private static final JVMCIBackend jvmci = JVMCI.getRuntime().getHostJVMCIBackend();
+    private static final Method findNative =
+            JavaInternals.getPrivateMethod(ClassLoader.class, "findNative", ClassLoader.class, String.class);
     private static final ConcurrentHashMap<String, Boolean> nativeLibraries = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, Long> trampolines = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Method, Long> upcalls = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Long> syscalls = new ConcurrentHashMap<>();
+    private static final boolean EAGER = Boolean.getBoolean("nalim.eager");
+
+    // Lazy methods are identified in resolver stubs by the index in this list
+    private static final List<LazyMethod> lazyMethods = new ArrayList<>();
+    private static long resolverStub;
     private static final CallingConvention callingConvention = CallingConvention.getInstance();
+    private static final String arch = jvmci.getTarget().arch.getName().toLowerCase();
+    private static final Set<String> cpuFeatures = getCpuFeatures();
+
+    private static final int BRANCH_MARGIN = 16;
+    private static final long codeCacheLowBound;
+    private static final long codeCacheHighBound;
 
     static {
+        HotSpotVMConfigAccess config = new HotSpotVMConfigAccess(HotSpotJVMCIRuntime.runtime().getConfigStore());
+        codeCacheLowBound = config.getFieldValue("CodeCache::_low_bound", Long.class, "address");
+        codeCacheHighBound = config.getFieldValue("CodeCache::_high_bound", Long.class, "address");
+
         loadLibrary("java");
     }
 
     public static void loadLibrary(String name) {
         if (nativeLibraries.putIfAbsent(name, Boolean.TRUE) == null) {
+            Events.LibraryLoad event = new Events.LibraryLoad();
+            event.begin();
             if (name.indexOf('/') >= 0 || name.indexOf('\\') > 0) {
                 System.load(name);
             } else {
                 System.loadLibrary(name);
             }
+            event.library = name;
+            event.commit();
         }
     }
 
     public static long findAddress(String symbol) {
         try {
-            Method m = JavaInternals.getPrivateMethod(ClassLoader.class, "findNative", ClassLoader.class, String.class);
-            return (long) m.invoke(null, Linker.class.getClassLoader(), symbol);
+            Events.SymbolLookup event = new Events.SymbolLookup();
+            event.begin();
+            long address = (long) findNative.invoke(null, Linker.class.getClassLoader(), symbol);
+            event.symbol = symbol;
+            event.address = address;
+            event.commit();
+            return address;
         } catch (ReflectiveOperationException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /**
+     * Links all annotated native methods of the class. If the class was compiled
+     * with {@link LinkProcessor}, methods and code are taken from its link manifest.
+     */
     public static void linkClass(Class<?> c) {
+        LinkManifest manifest;
+        try {
+            manifest = LinkManifest.load(c);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read link manifest of " + c.getName(), e);
+        }
+
+        if (manifest != null) {
+            if (!manifest.library.isEmpty()) {
+                loadLibrary(manifest.library);
+            }
+            for (LinkManifest.Entry entry : manifest.entries) {
+                link(findMethod(c, entry), entry);
+            }
+            return;
+        }
+
         Library library = c.getAnnotation(Library.class);
         if (library != null) {
             loadLibrary(library.value());
         }
 
+        Lazy lazy = c.getAnnotation(Lazy.class);
         for (Method m : c.getDeclaredMethods()) {
-            if (m.getAnnotation(Link.class) != null || m.getAnnotation(Code.class) != null) {
-                linkMethod(m);
+            if (m.getAnnotationsByType(Link.class).length > 0 || m.getAnnotationsByType(Code.class).length > 0
+                    || m.getAnnotation(Syscall.class) != null) {
+                link(m, LinkManifest.Entry.of(m, lazy));
+            }
+        }
+    }
+
+    private static Method findMethod(Class<?> c, LinkManifest.Entry entry) {
+        try {
+            MethodType type = MethodType.fromMethodDescriptorString(entry.descriptor, c.getClassLoader());
+            return c.getDeclaredMethod(entry.name, type.parameterArray());
+        } catch (NoSuchMethodException | TypeNotPresentException e) {
+            throw new IllegalStateException("Link manifest does not match " + c.getName(), e);
+        }
+    }
+
+    private static void link(Method m, LinkManifest.Entry entry) {
+        if (isLazy(m, entry)) {
+            installResolver(m, entry);
+        } else {
+            linkMethod(m, entry);
+        }
+    }
+
+    // Resolver stubs preserve only primitive arguments across the upcall
+    private static boolean isLazy(Method m, LinkManifest.Entry entry) {
+        if (!entry.lazy || EAGER || !callingConvention.supportsLazyLinking() || !entry.codes.isEmpty()) {
+            return false;
+        }
+
+        for (Class<?> type : m.getParameterTypes()) {
+            if (!type.isPrimitive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void installResolver(Method m, LinkManifest.Entry entry) {
+        checkMethodType(m);
+        long method = metaspaceMethod(jvmci.getMetaAccess().lookupJavaMethod(m));
+
+        synchronized (lazyMethods) {
+            if (resolverStub == 0) {
+                long resolve = upcallAddress(JavaInternals.getPrivateMethod(Linker.class, "resolve", long.class));
+                ByteBuffer buf = ByteBuffer.allocate(1000).order(ByteOrder.nativeOrder());
+                List<Site> sites = new ArrayList<>();
+                callingConvention.emitResolverStub(buf, sites, resolve);
+                resolverStub = installStub("nalim_resolve", buf, sites.toArray(new Site[0]));
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(100).order(ByteOrder.nativeOrder());
+            callingConvention.emitResolverEntry(buf, lazyMethods.size(), method, resolverStub);
+            InstalledCode resolver = installCode(m, buf.array(), buf.position(), new Site[0], "nalim_resolve");
+            lazyMethods.add(new LazyMethod(m, entry, resolver));
+        }
+    }
+
+    // Called from the shared resolver stub on the first call of a lazy method.
+    // The thread is not executing the per-method entry by then, so it is safe
+    // to invalidate it. If linking fails, the method is left without code, and the interpreter
+    // throws UnsatisfiedLinkError to the caller after the exception is printed
+    private static void resolve(long key) {
+        synchronized (lazyMethods) {
+            LazyMethod lazy = lazyMethods.get((int) key);
+            InstalledCode resolver = lazy.resolver;
+            if (resolver != null) {
+                lazy.resolver = null;
+                try {
+                    linkMethod(lazy.method, lazy.entry);
+                } catch (RuntimeException | Error e) {
+                    resolver.invalidate();
+                    throw e;
+                }
             }
         }
     }
 
     public static void linkMethod(Method m) {
+        linkMethod(m, LinkManifest.Entry.of(m, null));
+    }
+
+    private static void linkMethod(Method m, LinkManifest.Entry entry) {
         checkMethodType(m);
 
-        Code code = m.getAnnotation(Code.class);
-        if (code != null) {
-            installCode(m, parseHex(code.value()));
-            return;
+        for (LinkManifest.CodeVariant code : entry.codes) {
+            if (isSupported(code.arch, code.cpu)) {
+                installCode(m, code.code);
+                return;
+            }
         }
 
-        Link link = m.getAnnotation(Link.class);
-        if (link != null) {
-            linkMethod(m, link.name(), link.naked());
+        LinkManifest.LinkVariant link = null;
+        for (LinkManifest.LinkVariant variant : entry.links) {
+            if (isSupported(variant.arch, variant.cpu)) {
+                link = variant;
+                break;
+            }
+        }
+        if (link == null && (!entry.codes.isEmpty() || !entry.links.isEmpty())) {
+            throw new IllegalArgumentException("No variant supported by the current " + arch + " CPU: " + m);
+        }
+
+        if (entry.syscall) {
+            int number = entry.syscallNumber >= 0 ? entry.syscallNumber : callingConvention.syscallNumber(entry.syscallName);
+            linkSyscall(m, number, link != null ? link.mode : Link.Mode.CRITICAL);
+        } else if (link != null) {
+            linkMethod(m, link.name, link.naked, link.mode);
         } else {
             linkMethod(m, m.getName(), false);
         }
     }
 
     public static void linkMethod(Method m, String symbol, boolean naked) {
+        linkMethod(m, symbol, naked, Link.Mode.CRITICAL);
+    }
+
+    public static void linkMethod(Method m, String symbol, boolean naked, Link.Mode mode) {
         checkMethodType(m);
+        if (naked && mode != Link.Mode.CRITICAL) {
+            throw new IllegalArgumentException("Naked method cannot use " + mode + " mode: " + m);
+        }
 
         Library library = m.getAnnotation(Library.class);
         if (library != null) {
@@ -112,13 +272,255 @@ public class Linker {
             throw new IllegalArgumentException("Symbol not found: " + symbol);
         }
 
-        ByteBuffer buf = ByteBuffer.allocate(100).order(ByteOrder.nativeOrder());
-        if (!naked) {
-            callingConvention.javaToNative(buf, m.getParameterTypes(), m.getParameterAnnotations());
+        linkMethod(m, address, symbol, naked, mode);
+    }
+
+    public static void linkSyscall(Method m, int number, Link.Mode mode) {
+        checkMethodType(m);
+        if (m.getParameterCount() > 6) {
+            throw new IllegalArgumentException("System call takes at most 6 arguments: " + m);
+        }
+        for (Class<?> type : m.getParameterTypes()) {
+            if (type == float.class || type == double.class) {
+                throw new IllegalArgumentException("System call arguments must be integers: " + m);
+            }
+        }
+
+        linkMethod(m, syscalls.computeIfAbsent(number, Linker::installSyscall), "syscall_" + number, false, mode);
+    }
+
+    // target is the name of the native function for profilers
+    private static void linkMethod(Method m, long address, String target, boolean naked, Link.Mode mode) {
+        ByteBuffer buf = ByteBuffer.allocate(1000).order(ByteOrder.nativeOrder());
+        List<Site> sites = new ArrayList<>();
+        Class<?>[] types = m.getParameterTypes();
+        Annotation[][] annotations = m.getParameterAnnotations();
+
+        if (CallCounters.ENABLED) {
+            callingConvention.emitCounter(buf, CallCounters.register(m));
+        }
+        if (CallTiming.ENABLED) {
+            address = installTimingWrapper(m, address, target);
+        }
+
+        // Argument registers and stack slots hold Java references until the call,
+        // so a stub that lets GC run must not replace them with raw pointers
+        if (mode != Link.Mode.CRITICAL && hasObjectArgs(types)) {
+            throw new IllegalArgumentException("Objects cannot be passed in " + mode + " mode: " + m);
         }
+
+        Batch batch = m.getAnnotation(Batch.class);
+        if (batch != null) {
+            checkBatchType(m, batch, naked, mode);
+        } else if (!naked && CallingConvention.hasAddressArgs(types, annotations)) {
+            Class<?>[] javaTypes = types;
+            types = callingConvention.emitAddressArgs(buf, javaTypes, annotations);
+            annotations = CallingConvention.convertAnnotations(javaTypes, annotations);
+        }
+
+        if (naked) {
+            callingConvention.emitCall(buf, sites, address);
+        } else if (batch != null) {
+            callingConvention.emitBatchStub(buf, sites, types, batch.output(), address);
+        } else if (m.isAnnotationPresent(ReturnOffset.class)) {
+            if (mode != Link.Mode.CRITICAL) {
+                throw new IllegalArgumentException("@ReturnOffset is not supported in " + mode + " mode: " + m);
+            }
+            if (types.length == 0 || types[0] == float.class || types[0] == double.class || m.getReturnType() != long.class) {
+                throw new IllegalArgumentException("@ReturnOffset method must take a pointer and return long: " + m);
+            }
+            callingConvention.emitReturnOffsetStub(buf, sites, types, annotations, address);
+        } else if (hasLastError(m)) {
+            if (mode != Link.Mode.CRITICAL) {
+                throw new IllegalArgumentException("@LastError is not supported in " + mode + " mode: " + m);
+            }
+            callingConvention.emitLastErrorStub(buf, sites, types, annotations, address);
+        } else if (hasReturn(m)) {
+            if (mode != Link.Mode.CRITICAL) {
+                throw new IllegalArgumentException("@Return is not supported in " + mode + " mode: " + m);
+            }
+            callingConvention.emitReturnStub(buf, sites, types, annotations, address);
+        } else if (mode == Link.Mode.BLOCKING) {
+            callingConvention.emitBlockingStub(buf, sites, types, annotations, address);
+        } else {
+            callingConvention.emitStub(buf, sites, types, annotations, address);
+        }
+
+        installCode(m, buf.array(), buf.position(), sites.toArray(new Site[0]), target);
+    }
+
+    // Checks if a direct branch from any place in the code cache can reach the given address.
+    // The displacement may be counted from the end of the branch instruction rather than
+    // from the bounds, so the range is reduced by a margin that covers any branch length
+    static boolean isReachable(long address, long range) {
+        range -= BRANCH_MARGIN;
+        return Math.abs(address - codeCacheLowBound) <= range && Math.abs(address - codeCacheHighBound) <= range;
+    }
+
+    // Returns a stub in the code cache that jumps to the given address.
+    // Stubs are shared between all methods linked to the same function
+    static long getTrampoline(long address) {
+        return trampolines.computeIfAbsent(address, Linker::installTrampoline);
+    }
+
+    private static long installTrampoline(long address) {
+        ByteBuffer buf = ByteBuffer.allocate(100).order(ByteOrder.nativeOrder());
         callingConvention.emitCall(buf, address);
+        return installStub("nalim_trampoline_" + Long.toHexString(address), buf, new Site[0]);
+    }
+
+    // The wrapper is called instead of the function by any kind of stub.
+    // Stack arguments are copied by the upper bound of their count
+    private static long installTimingWrapper(Method m, long address, String target) {
+        int stackSlots = Math.max(3 * m.getParameterCount() - 4, 0);
+        if (stackSlots > CallTiming.MAX_STACK_SLOTS) {
+            return address;
+        }
 
-        installCode(m, buf.array(), buf.position());
+        ByteBuffer buf = ByteBuffer.allocate(1000).order(ByteOrder.nativeOrder());
+        List<Site> sites = new ArrayList<>();
+        callingConvention.emitTimingWrapper(buf, sites, address, CallTiming.register(m, target), CallTiming.thresholdTicks(), stackSlots);
+        return installStub(CallCounters.methodName(m) + " timing -> " + target, buf, sites.toArray(new Site[0]));
+    }
+
+    // The system call is wrapped in a tiny native function, so that
+    // all stub variants can call it like any other native function
+    private static long installSyscall(int number) {
+        ByteBuffer buf = ByteBuffer.allocate(100).order(ByteOrder.nativeOrder());
+        callingConvention.emitSyscall(buf, number);
+        return installStub("nalim_syscall_" + number, buf, new Site[0]);
+    }
+
+    /**
+     * Returns the address of a native function that calls the given static Java method.
+     * The function has the same signature as the method; only primitive types are supported.
+     * It may be called only from native code invoked through a method linked in BLOCKING mode.
+     * An exception thrown by the Java method is printed and discarded.
+     * <p>
+     * Supported on amd64 only. Each call goes through JNI GetEnv and CallStatic&lt;Type&gt;MethodA,
+     * so it costs as much as an ordinary JNI upcall.
+     */
+    public static long upcallAddress(Method m) {
+        return upcalls.computeIfAbsent(m, Linker::installUpcall);
+    }
+
+    private static long installUpcall(Method m) {
+        if (!Modifier.isStatic(m.getModifiers())) {
+            throw new IllegalArgumentException("Upcall method must be static: " + m);
+        }
+
+        Class<?>[] types = m.getParameterTypes();
+        for (Class<?> type : types) {
+            if (!type.isPrimitive()) {
+                throw new IllegalArgumentException("Upcall arguments must be primitive: " + m);
+            }
+        }
+
+        // CallStatic<Type>MethodA neither initializes the class nor uses it otherwise
+        Class<?> c = m.getDeclaringClass();
+        try {
+            Class.forName(c.getName(), true, c.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(1000).order(ByteOrder.nativeOrder());
+        List<Site> sites = new ArrayList<>();
+        callingConvention.emitUpcallStub(buf, sites, types, m.getReturnType(), methodId(m));
+        return installStub("nalim_upcall_" + m.getName(), buf, sites.toArray(new Site[0]));
+    }
+
+    // Returns a jmethodID, which HotSpot keeps valid across class redefinition
+    private static long methodId(Method m) {
+        return MethodIds.fromReflectedMethod(m);
+    }
+
+    // FromReflectedMethod needs JNIEnv, so it is called through a JNI native method.
+    // The holder binds it on first use with RegisterNatives, as a JNI library would
+    private static class MethodIds {
+
+        static {
+            ByteBuffer buf = ByteBuffer.allocate(100).order(ByteOrder.nativeOrder());
+            callingConvention.emitFromReflectedMethod(buf);
+            long function = installStub("nalim_FromReflectedMethod", buf, new Site[0]);
+
+            buf = ByteBuffer.allocate(1000).order(ByteOrder.nativeOrder());
+            List<Site> sites = new ArrayList<>();
+            callingConvention.emitRegisterNatives(buf, sites);
+            long registerNatives = installStub("nalim_RegisterNatives", buf, sites.toArray(new Site[0]));
+            linkMethod(JavaInternals.getPrivateMethod(MethodIds.class, "registerNatives", long.class, long.class),
+                    registerNatives, "nalim_RegisterNatives", false, Link.Mode.BLOCKING);
+
+            // JNINativeMethod {name, signature, fnPtr} followed by the strings it points to
+            String[] strings = {MethodIds.class.getName().replace('.', '/'), "fromReflectedMethod", "(Ljava/lang/reflect/Method;)J"};
+            long methods = JavaInternals.unsafe.allocateMemory(1000);
+            try {
+                long[] addresses = new long[strings.length];
+                long address = methods + 24;
+                for (int i = 0; i < strings.length; i++) {
+                    addresses[i] = address;
+                    for (byte b : strings[i].getBytes(StandardCharsets.UTF_8)) {
+                        JavaInternals.unsafe.putByte(address++, b);
+                    }
+                    JavaInternals.unsafe.putByte(address++, (byte) 0);
+                }
+                JavaInternals.unsafe.putAddress(methods, addresses[1]);
+                JavaInternals.unsafe.putAddress(methods + 8, addresses[2]);
+                JavaInternals.unsafe.putAddress(methods + 16, function);
+
+                if (registerNatives(addresses[0], methods) != 0) {
+                    throw new IllegalStateException("Cannot register FromReflectedMethod");
+                }
+            } finally {
+                JavaInternals.unsafe.freeMemory(methods);
+            }
+        }
+
+        // FindClass(className) and RegisterNatives of one method; the exception is printed on failure
+        private static native int registerNatives(long className, long methods);
+
+        static native long fromReflectedMethod(Method m);
+    }
+
+    private static long metaspaceMethod(ResolvedJavaMethod rm) {
+        try {
+            return (long) JavaInternals.getPrivateMethod(rm.getClass(), "getMetaspaceMethod").invoke(rm);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long installStub(String name, ByteBuffer buf, Site[] sites) {
+        Events.CodeInstall event = new Events.CodeInstall();
+        event.begin();
+
+        HotSpotCompiledCode stub = new HotSpotCompiledCode(
+                name,
+                buf.array(),
+                buf.position(),
+                sites,
+                new Assumptions.Assumption[0],
+                new ResolvedJavaMethod[0],
+                new HotSpotCompiledCode.Comment[0],
+                new byte[0],
+                1,
+                new DataPatch[0],
+                false,
+                0,
+                null
+        );
+
+        InstalledCode installed = jvmci.getCodeCache().addCode(null, stub, null, null);
+        if (PerfMap.ENABLED) {
+            PerfMap.record(name, installed);
+        }
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.address = installed.getStart();
+            event.size = buf.position();
+            event.commit();
+        }
+        return installed.getStart();
     }
 
     private static void checkMethodType(Method m) {
@@ -128,19 +530,89 @@ public class Linker {
         }
     }
 
-    private static byte[] parseHex(String hex) {
-        hex = hex.replaceAll("\\s+", "");
+    private static void checkBatchType(Method m, Batch batch, boolean naked, Link.Mode mode) {
+        if (naked || mode != Link.Mode.CRITICAL) {
+            throw new IllegalArgumentException("@Batch method must be linked in CRITICAL mode: " + m);
+        }
+
+        Class<?>[] types = m.getParameterTypes();
+        int arrays = types.length - 1;
+        if (arrays < (batch.output() ? 1 : 0) || types[arrays] != int.class || m.getReturnType() != void.class) {
+            throw new IllegalArgumentException("@Batch method must be void and end with int count: " + m);
+        }
+        for (int i = 0; i < arrays; i++) {
+            if (!types[i].isArray() || !types[i].getComponentType().isPrimitive()) {
+                throw new IllegalArgumentException("@Batch arguments must be primitive arrays: " + m);
+            }
+        }
+    }
+
+    static boolean isSupported(String requiredArch, String... requiredFeatures) {
+        if (!requiredArch.isEmpty() && !requiredArch.equalsIgnoreCase(arch)) {
+            return false;
+        }
+        for (String feature : requiredFeatures) {
+            if (!cpuFeatures.contains(feature.toLowerCase())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // CPU features detected by the JVM, e.g. from CPUID or HWCAP,
+    // as exposed by the architecture-specific JVMCI class
+    private static Set<String> getCpuFeatures() {
+        Architecture target = jvmci.getTarget().arch;
+        Set<String> features = new HashSet<>();
+        try {
+            Method m = JavaInternals.getPrivateMethod(target.getClass(), "getFeatures");
+            for (Object feature : (Set<?>) m.invoke(target)) {
+                features.add(feature.toString().toLowerCase());
+            }
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            // Unknown architecture: no optional features
+        }
+        return features;
+    }
+
+    private static boolean hasObjectArgs(Class<?>[] types) {
+        for (Class<?> type : types) {
+            if (!type.isPrimitive()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        int length = hex.length();
-        if ((length & 1) != 0) {
-            throw new IllegalArgumentException("Invalid hex string");
+    private static boolean hasLastError(Method m) {
+        Annotation[][] annotations = m.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            for (Annotation annotation : annotations[i]) {
+                if (annotation instanceof LastError) {
+                    if (i != annotations.length - 1 || m.getParameterTypes()[i] != int[].class) {
+                        throw new IllegalArgumentException("@LastError must be the last int[] parameter: " + m);
+                    }
+                    return true;
+                }
+            }
         }
+        return false;
+    }
 
-        byte[] code = new byte[length / 2];
-        for (int i = 0; i < code.length; i++) {
-            code[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    private static boolean hasReturn(Method m) {
+        Annotation[][] annotations = m.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            for (Annotation annotation : annotations[i]) {
+                if (annotation instanceof Return) {
+                    Class<?> type = m.getParameterTypes()[i];
+                    if (i != annotations.length - 1 || type.isPrimitive() || type.isArray()) {
+                        throw new IllegalArgumentException("@Return must be the last object parameter: " + m);
+                    }
+                    return true;
+                }
+            }
         }
-        return code;
+        return false;
     }
 
     public static void installCode(Method m, byte[] code) {
@@ -148,13 +620,20 @@ public class Linker {
     }
 
     public static void installCode(Method m, byte[] code, int length) {
+        installCode(m, code, length, new Site[0], null);
+    }
+
+    static InstalledCode installCode(Method m, byte[] code, int length, Site[] sites, String target) {
+        Events.CodeInstall event = new Events.CodeInstall();
+        event.begin();
+
         ResolvedJavaMethod rm = jvmci.getMetaAccess().lookupJavaMethod(m);
 
         HotSpotCompiledNmethod nm = new HotSpotCompiledNmethod(
                 m.getName(),
                 code,
                 length,
-                new Site[0],
+                sites,
                 new Assumptions.Assumption[0],
                 new ResolvedJavaMethod[0],
                 new HotSpotCompiledCode.Comment[0],
@@ -171,6 +650,33 @@ public class Linker {
                 false
         );
 
-        jvmci.getCodeCache().setDefaultCode(rm, nm);
+        InstalledCode installed = jvmci.getCodeCache().setDefaultCode(rm, nm);
+        if (PerfMap.ENABLED || event.shouldCommit()) {
+            String name = CallCounters.methodName(m);
+            if (target != null) {
+                name += " -> " + target;
+            }
+            if (PerfMap.ENABLED) {
+                PerfMap.record(name, installed);
+            }
+            event.name = name;
+            event.address = installed.getStart();
+            event.size = length;
+            event.commit();
+        }
+        return installed;
+    }
+
+    private static class LazyMethod {
+        final Method method;
+        final LinkManifest.Entry entry;
+        // Until the first call
+        InstalledCode resolver;
+
+        LazyMethod(Method method, LinkManifest.Entry entry, InstalledCode resolver) {
+            this.method = method;
+            this.entry = entry;
+            this.resolver = resolver;
+        }
     }
 }
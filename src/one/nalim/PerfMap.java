@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import jdk.vm.ci.code.InstalledCode;
+import jdk.vm.ci.hotspot.HotSpotInstalledCode;
+
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes code installed by nalim to profilers.
+ * <p>
+ * With {@code -Dnalim.perfmap=true}, every stub is appended to {@code /tmp/perf-<pid>.map}
+ * as {@code START SIZE name}. With {@code -Dnalim.jitdump=true}, stubs are written
+ * with their machine code to {@code /tmp/jit-<pid>.dump} in the jitdump format
+ * for {@code perf inject --jit}. A stub is named after the Java method
+ * and the native function it calls, e.g. {@code one.nalim.Bytes.memchr(byte[],int,int,long) -> memchr}.
+ * If a file cannot be written, a warning is printed and that output is turned off,
+ * so that a profiler setup problem never prevents linking.
+ */
+class PerfMap {
+    private static final boolean PERF_MAP = Boolean.getBoolean("nalim.perfmap");
+    private static final boolean JITDUMP = Boolean.getBoolean("nalim.jitdump");
+    static final boolean ENABLED = PERF_MAP || JITDUMP;
+
+    // Turned off for the rest of the run after the first write error
+    private static boolean perfMapEnabled = PERF_MAP;
+    private static boolean jitdumpEnabled = JITDUMP;
+
+    private static final int JITDUMP_MAGIC = 0x4a695444;
+    private static final int JITDUMP_VERSION = 1;
+    private static final int JITDUMP_HEADER_SIZE = 40;
+    private static final int JIT_CODE_LOAD = 0;
+    private static final int JIT_CODE_LOAD_SIZE = 56;
+    private static final int JIT_CODE_LOAD_TID = 20;
+
+    private static final int pid = (int) ProcessHandle.current().pid();
+
+    private static Writer perfMap;
+    private static String jitdumpPath;
+    private static FileOutputStream jitdump;
+    private static long codeIndex;
+    private static boolean marked;
+    private static List<ByteBuffer> held;
+
+    static synchronized void record(String name, InstalledCode installed) {
+        HotSpotInstalledCode code = (HotSpotInstalledCode) installed;
+        if (perfMapEnabled) {
+            try {
+                writePerfMap(code.getStart(), code.getCodeSize(), name);
+            } catch (IOException e) {
+                perfMapEnabled = false;
+                warn("/tmp/perf-" + pid + ".map", e);
+            }
+        }
+        if (jitdumpEnabled) {
+            try {
+                writeJitdump(code.getStart(), code.getCode(), name);
+            } catch (IOException e) {
+                jitdumpEnabled = false;
+                warn("/tmp/jit-" + pid + ".dump", e);
+            }
+        }
+    }
+
+    private static void warn(String path, IOException e) {
+        System.err.println("[nalim] Cannot write " + path + ", profiler output is turned off: " + e);
+    }
+
+    private static void writePerfMap(long start, long size, String name) throws IOException {
+        if (perfMap == null) {
+            perfMap = new FileWriter("/tmp/perf-" + pid + ".map", StandardCharsets.UTF_8, true);
+        }
+        perfMap.write(Long.toHexString(start) + ' ' + Long.toHexString(size) + ' ' + name + '\n');
+        perfMap.flush();
+    }
+
+    private static void writeJitdump(long start, byte[] code, String name) throws IOException {
+        if (jitdump == null) {
+            jitdumpPath = "/tmp/jit-" + pid + ".dump";
+            jitdump = new FileOutputStream(jitdumpPath);
+            writeJitdumpHeader();
+        }
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int size = JIT_CODE_LOAD_SIZE + nameBytes.length + 1 + code.length;
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        buf.putInt(JIT_CODE_LOAD);
+        buf.putInt(size);
+        buf.putLong(System.nanoTime());
+        buf.putInt(pid);
+        buf.putInt(0);        // tid, filled in when written
+        buf.putLong(start);   // vma
+        buf.putLong(start);   // code_addr
+        buf.putLong(code.length);
+        buf.putLong(codeIndex++);
+        buf.put(nameBytes).put((byte) 0);
+        buf.put(code);
+
+        if (held != null) {
+            held.add(buf);
+        } else if (marked) {
+            writeCodeLoad(buf, Marker.gettid());
+        } else {
+            markJitdump(buf);
+        }
+    }
+
+    private static void writeCodeLoad(ByteBuffer buf, int tid) throws IOException {
+        buf.putInt(JIT_CODE_LOAD_TID, tid);
+        jitdump.write(buf.array());
+    }
+
+    private static void writeJitdumpHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(JITDUMP_HEADER_SIZE).order(ByteOrder.nativeOrder());
+        buf.putInt(JITDUMP_MAGIC);
+        buf.putInt(JITDUMP_VERSION);
+        buf.putInt(JITDUMP_HEADER_SIZE);
+        buf.putInt(elfMachine());
+        buf.putInt(0);
+        buf.putInt(pid);
+        buf.putLong(System.nanoTime());
+        buf.putLong(0);
+        jitdump.write(buf.array());
+    }
+
+    // perf discovers the jitdump file by an executable mapping of it.
+    // Stubs installed while Marker itself is being linked are held back
+    // until gettid is available; they all belong to the current thread
+    private static void markJitdump(ByteBuffer first) throws IOException {
+        held = new ArrayList<>();
+        held.add(first);
+        try {
+            int tid = Marker.gettid();
+            for (ByteBuffer buf : held) {
+                writeCodeLoad(buf, tid);
+            }
+            Marker.map(jitdumpPath);
+        } catch (LinkageError e) {
+            throw new IOException("Cannot map " + jitdumpPath, e);
+        } finally {
+            held = null;
+            marked = true;
+        }
+    }
+
+    // Own libc bindings, so that profiling does not depend on
+    // initialization of other classes, which may be linked with profiling too
+    private static class Marker {
+        private static final int O_RDONLY = 0;
+        private static final int PROT_READ = 1;
+        private static final int PROT_EXEC = 4;
+        private static final int MAP_PRIVATE = 2;
+        private static final int SYS_GETTID = Syscalls.number("gettid", System.getProperty("os.arch").equals("amd64"));
+
+        static {
+            Linker.linkClass(Marker.class);
+        }
+
+        static void map(String path) throws IOException {
+            int fd = open((path + '\0').getBytes(StandardCharsets.UTF_8), O_RDONLY);
+            if (fd < 0) {
+                throw new IOException("Cannot open " + path);
+            }
+            long address = mmap(0, 4096, PROT_READ | PROT_EXEC, MAP_PRIVATE, fd, 0);
+            close(fd);
+            if (address == -1) {
+                throw new IOException("Cannot map " + path);
+            }
+        }
+
+        @Link
+        private static native int open(byte[] path, int flags);
+
+        @Link
+        private static native long mmap(long address, long length, int prot, int flags, int fd, long offset);
+
+        @Link
+        private static native int close(int fd);
+
+        // Not every libc exports gettid
+        static int gettid() {
+            return (int) syscall(SYS_GETTID);
+        }
+
+        @Link
+        private static native long syscall(long number);
+    }
+
+    private static int elfMachine() {
+        String arch = System.getProperty("os.arch");
+        if (arch.equals("aarch64")) {
+            return 183;
+        } else if (arch.startsWith("riscv")) {
+            return 243;
+        }
+        return 62;
+    }
+}
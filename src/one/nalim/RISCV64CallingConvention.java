@@ -27,14 +27,210 @@ class RISCV64CallingConvention extends CallingConvention {
     // RISCV64 calling convention:
     //     Java: x10, x11, x12, x13, x14, x15, x16, x17, stack
     //   Native: x10, x11, x12, x13, x14, x15, x16, x17, stack
+    //
+    // Floating point arguments are passed in f10 - f17, then on the stack.
+    // Native ABI, however, uses free integer registers before the stack.
+
+    private static final int ZR = 0;   // x0
+    private static final int RA = 1;   // x1
+    private static final int SP = 2;   // x2
+    private static final int T0 = 5;   // x5
+    private static final int T1 = 6;   // x6
+    private static final int T2 = 7;   // x7
+    private static final int A0 = 10;  // x10
 
     @Override
     public void javaToNative(ByteBuffer buf, Class<?>[] types, Annotation[][] annotations) {
-        // nothing to be done, the Java and Native calling convention are the same
+        // Registers and stack slots are the same in Java and Native calling conventions
+        // as long as floating point arguments fit in FP registers.
+        // Only objects need adjustment to point to the data
+        int index = 0;
+        int fpIndex = 0;
+        int stackSlot = 0;
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i];
+            if (isFloatingPoint(type)) {
+                if (fpIndex++ >= 8) {
+                    if (index < 8) {
+                        throw new IllegalArgumentException("Too many floating point arguments");
+                    }
+                    stackSlot++;
+                }
+            } else if (index >= 8) {
+                // Adjust in place, since the slot belongs to the callee
+                if (!type.isPrimitive()) {
+                    int offset = baseOffset(type, annotations[i]);
+                    buf.putInt(ld(T0, SP, stackSlot * 8));  // ld t0, slot(sp)
+                    buf.putInt(addi(T0, T0, offset));       // addi t0, t0, offset
+                    buf.putInt(sd(T0, SP, stackSlot * 8));  // sd t0, slot(sp)
+                }
+                stackSlot++;
+            } else {
+                if (!type.isPrimitive()) {
+                    int reg = A0 + index;
+                    buf.putInt(addi(reg, reg, baseOffset(type, annotations[i])));  // addi a0, a0, offset
+                }
+                index++;
+            }
+        }
+    }
+
+    @Override
+    int javaIntRegisters() {
+        return 8;
+    }
+
+    @Override
+    void emitMoveJavaArg(ByteBuffer buf, int dst, int src) {
+        if (src >= 0 && dst >= 0) {
+            buf.putInt(addi(A0 + dst, A0 + src, 0));              // mv a0, a1
+        } else if (src >= 0) {
+            buf.putInt(sd(A0 + src, SP, (-1 - dst) * 8));         // sd a0, slot(sp)
+        } else if (dst >= 0) {
+            buf.putInt(ld(A0 + dst, SP, (-1 - src) * 8));         // ld a0, slot(sp)
+        } else {
+            buf.putInt(ld(T0, SP, (-1 - src) * 8));               // ld t0, slot(sp)
+            buf.putInt(sd(T0, SP, (-1 - dst) * 8));               // sd t0, slot(sp)
+        }
+    }
+
+    @Override
+    void emitElementAddress(ByteBuffer buf, int array, int index, int base, int shift) {
+        if (index >= 0) {
+            buf.putInt(0b0011011 | (T1 << 7) | (0b000 << 12) | ((A0 + index) << 15));  // sext.w t1, a1
+        } else {
+            buf.putInt(0b0000011 | (T1 << 7) | (0b010 << 12) | (SP << 15) | (simm12((-1 - index) * 8) << 20));  // lw t1, slot(sp)
+        }
+        buf.putInt(0b0010011 | (T1 << 7) | (0b001 << 12) | (T1 << 15) | (shift << 20));  // slli t1, t1, shift
+
+        int reg = array >= 0 ? A0 + array : T0;
+        if (array < 0) {
+            buf.putInt(ld(T0, SP, (-1 - array) * 8));             // ld t0, slot(sp)
+        }
+        buf.putInt(0b0110011 | (reg << 7) | (0b000 << 12) | (reg << 15) | (T1 << 20));  // add a0, a0, t1
+        buf.putInt(addi(reg, reg, base));                         // addi a0, a0, base
+        if (array < 0) {
+            buf.putInt(sd(T0, SP, (-1 - array) * 8));             // sd t0, slot(sp)
+        }
+    }
+
+    @Override
+    void emitLoadAddress(ByteBuffer buf, int location, int addressOffset, int positionOffset, int heapOffset) {
+        int reg = location >= 0 ? A0 + location : T0;
+        if (location < 0) {
+            buf.putInt(ld(T0, SP, (-1 - location) * 8));             // ld t0, slot(sp)
+        }
+
+        int skip = (positionOffset >= 0 ? 16 : 8) + (heapOffset >= 0 ? 12 : 0);
+        buf.putInt(0b1100011 | ((skip >> 1) << 8) | (0b000 << 12) | (reg << 15) | (ZR << 20));  // beqz a0, skip
+        if (heapOffset >= 0) {
+            int funct3 = VMStructs.useCompressedOops ? 0b110 : 0b011;
+            buf.putInt(load(T2, reg, heapOffset, funct3));           // lwu/ld t2, hb(a0)
+        }
+        if (positionOffset >= 0) {
+            buf.putInt(0b0000011 | (T1 << 7) | (0b010 << 12) | (reg << 15) | (simm12(positionOffset) << 20));  // lw t1, position(a0)
+            buf.putInt(ld(reg, reg, addressOffset));                 // ld a0, address(a0)
+            buf.putInt(0b0110011 | (reg << 7) | (0b000 << 12) | (reg << 15) | (T1 << 20));  // add a0, a0, t1
+        } else {
+            buf.putInt(ld(reg, reg, addressOffset));                 // ld a0, address(a0)
+        }
+        if (heapOffset >= 0) {
+            // Heap ByteBuffer has no native address
+            buf.putInt(0b1100011 | ((8 >> 1) << 8) | (0b000 << 12) | (T2 << 15) | (ZR << 20));  // beqz t2, +8
+            buf.putInt(addi(reg, ZR, 0));                            // li a0, 0
+        }
+
+        if (location < 0) {
+            buf.putInt(sd(T0, SP, (-1 - location) * 8));             // sd t0, slot(sp)
+        }
+    }
+
+    @Override
+    void emitStringValue(ByteBuffer buf, int location, int lengthLocation, int coderLocation) {
+        int reg = location >= 0 ? A0 + location : T0;
+        if (location < 0) {
+            buf.putInt(ld(T0, SP, (-1 - location) * 8));             // ld t0, slot(sp)
+        }
+        if (lengthLocation != NO_LOCATION) {
+            storeIntArg(buf, lengthLocation, ZR);
+        }
+        if (coderLocation != NO_LOCATION) {
+            storeIntArg(buf, coderLocation, ZR);
+        }
+
+        int isNull = buf.position();
+        buf.putInt(0);  // beqz a0, isNull
+
+        buf.putInt(load(T1, reg, fieldOffset(String.class, "coder"), 0b100));  // lbu t1, coder(a0)
+        int utf16 = -1;
+        if (coderLocation != NO_LOCATION) {
+            storeIntArg(buf, coderLocation, T1);
+        } else {
+            utf16 = buf.position();
+            buf.putInt(0);  // bnez t1, utf16
+        }
+
+        int valueOffset = fieldOffset(String.class, "value");
+        if (VMStructs.useCompressedOops) {
+            buf.putInt(load(reg, reg, valueOffset, 0b110));           // lwu a0, value(a0)
+            if (VMStructs.narrowOopShift != 0) {
+                buf.putInt(0b0010011 | (reg << 7) | (0b001 << 12) | (reg << 15) | (VMStructs.narrowOopShift << 20));  // slli a0, a0, shift
+            }
+            if (VMStructs.narrowOopBase != 0) {
+                // HotSpot keeps the heap base in x27
+                buf.putInt(0b0110011 | (reg << 7) | (0b000 << 12) | (reg << 15) | (27 << 20));  // add a0, a0, x27
+            }
+        } else {
+            buf.putInt(ld(reg, reg, valueOffset));                   // ld a0, value(a0)
+        }
+
+        if (lengthLocation != NO_LOCATION) {
+            buf.putInt(load(T1, reg, VMStructs.arrayLengthOffset, 0b010));  // lw t1, length(a0)
+            storeIntArg(buf, lengthLocation, T1);
+        }
+        buf.putInt(addi(reg, reg, arrayBaseOffset(byte[].class)));  // addi a0, a0, base
+
+        if (utf16 >= 0) {
+            // Without the coder, native code cannot tell UTF-16 bytes from LATIN1
+            buf.putInt(0b1101111 | ((8 >> 1) << 21));                 // j +8
+            buf.putInt(utf16, branch(0b001, T1, ZR, buf.position() - utf16));  // bnez t1, utf16
+            buf.putInt(addi(reg, ZR, 0));                            // li a0, 0
+        }
+        buf.putInt(isNull, branch(0b000, reg, ZR, buf.position() - isNull));  // beqz a0, isNull
+
+        if (location < 0) {
+            buf.putInt(sd(T0, SP, (-1 - location) * 8));             // sd t0, slot(sp)
+        }
+    }
+
+    // Moves the register to the int argument at the given location
+    private static void storeIntArg(ByteBuffer buf, int location, int reg) {
+        if (location >= 0) {
+            buf.putInt(addi(A0 + location, reg, 0));                  // mv a0, t1
+        } else {
+            buf.putInt(sd(reg, SP, (-1 - location) * 8));             // sd t1, slot(sp)
+        }
+    }
+
+    @Override
+    void emitSyscall(ByteBuffer buf, int number) {
+        buf.putInt(0x00000893 | number << 20);          // li a7, number
+        buf.putInt(0x00000073);                         // ecall
+        buf.putInt(0x00008067);                         // ret
     }
 
     @Override
     public void emitCall(ByteBuffer buf, long address) {
+        emitJump(buf, address, ZR);
+    }
+
+    @Override
+    void emitIndirectCall(ByteBuffer buf, long address) {
+        emitJump(buf, address, RA);
+    }
+
+    // Materializes the address in t0 and jumps there, saving the return address in rd
+    private static void emitJump(ByteBuffer buf, long address, int rd) {
         long imm = address >> 17;
         long upper = imm, lower = imm;
         lower = (lower << 52) >> 52;
@@ -45,14 +241,45 @@ class RISCV64CallingConvention extends CallingConvention {
         int a2 = (int)((address >> 6) & 0x7ff);
         int a3 = (int)((address) & 0x3f);
 
-        int zr = 0; // x0
-        int t0 = 5; // x5
+        buf.putInt(0b0110111 | (T0 << 7) | (a0 & 0xfffff000));                       // lui t0, a0
+        buf.putInt(addi(T0, T0, a1));                                                 // addi t0, t0, a1
+        buf.putInt(0b0010011 | (T0 << 7) | (0b001 << 12) | (T0 << 15) | (11 << 20)); // slli t0, t0, 11
+        buf.putInt(addi(T0, T0, a2));                                                 // addi t0, t0, a2
+        buf.putInt(0b0010011 | (T0 << 7) | (0b001 << 12) | (T0 << 15) | ( 6 << 20)); // slli t0, t0, 6
+        buf.putInt(0b1100111 | (rd << 7) | (0b000 << 12) | (T0 << 15) | (a3 << 20)); // jalr rd, a3(t0)
+    }
+
+    // I-type: addi rd, rs1, imm
+    static int addi(int rd, int rs1, int imm) {
+        return 0b0010011 | (rd << 7) | (0b000 << 12) | (rs1 << 15) | (simm12(imm) << 20);
+    }
+
+    // B-type: beq/bne rs1, rs2, offset depending on funct3
+    static int branch(int funct3, int rs1, int rs2, int offset) {
+        return 0b1100011 | ((offset >> 11) & 1) << 7 | ((offset >> 1) & 0xf) << 8 | (funct3 << 12)
+                | (rs1 << 15) | (rs2 << 20) | ((offset >> 5) & 0x3f) << 25 | ((offset >> 12) & 1) << 31;
+    }
+
+    // I-type: ld rd, imm(rs1)
+    static int ld(int rd, int rs1, int imm) {
+        return 0b0000011 | (rd << 7) | (0b011 << 12) | (rs1 << 15) | (simm12(imm) << 20);
+    }
+
+    // I-type: lw/lwu/lbu rd, imm(rs1) depending on funct3
+    static int load(int rd, int rs1, int imm, int funct3) {
+        return 0b0000011 | (rd << 7) | (funct3 << 12) | (rs1 << 15) | (simm12(imm) << 20);
+    }
+
+    // S-type: sd rs2, imm(rs1)
+    static int sd(int rs2, int rs1, int imm) {
+        imm = simm12(imm);
+        return 0b0100011 | ((imm & 0x1f) << 7) | (0b011 << 12) | (rs1 << 15) | (rs2 << 20) | ((imm >>> 5) << 25);
+    }
 
-        buf.putInt(0b0110111 | (t0 << 7) | (a0 << 12));                              // lui t0, a0
-        buf.putInt(0b0010011 | (t0 << 7) | (0b000 << 12) | (t0 << 15) | (a1 << 20)); // addi t0, t0, a1
-        buf.putInt(0b0010011 | (t0 << 7) | (0b001 << 12) | (t0 << 15) | (11 << 20)); // slli t0, t0, 11
-        buf.putInt(0b0010011 | (t0 << 7) | (0b000 << 12) | (t0 << 15) | (a2 << 20)); // addi t0, t0, a2
-        buf.putInt(0b0010011 | (t0 << 7) | (0b001 << 12) | (t0 << 15) | ( 6 << 20)); // slli t0, t0, 6
-        buf.putInt(0b1100111 | (zr << 7) | (0b000 << 12) | (t0 << 15) | (a3 << 20)); // jalr a3(t0)
+    private static int simm12(int value) {
+        if (value < -2048 || value > 2047) {
+            throw new IllegalArgumentException("Not in the imm12 range: " + value);
+        }
+        return value & 0xfff;
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the last object parameter, which is not passed to a native function.
+ * Instead, the stub stores the native return value into the fields of the object:
+ * the first integer return register (rax, x0) goes to the first listed field,
+ * and the second one (rdx, x1) goes to the second field. This way, a function
+ * returning a small struct of two integers, like ldiv_t, can be called
+ * without allocation. Fields must be of type long or int.
+ * If the object is null, the return value is discarded.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Return {
+    /**
+     * Names of the fields that receive the first and the second return register.
+     */
+    String[] value();
+}
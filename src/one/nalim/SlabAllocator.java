@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * Thread-caching allocator of native memory with power-of-two size classes
+ * from 16 bytes to 16 KB. Blocks are carved from 256 KB slabs obtained from
+ * {@code aligned_alloc}; larger requests are served directly by {@code aligned_alloc}.
+ * <p>
+ * Each thread keeps free lists of its own, linked through the first word of free blocks,
+ * so allocation and release normally take no locks. Excess blocks migrate
+ * to shared lists in batches. A block may be freed by any thread.
+ * Call {@link #flush()} before a thread terminates to give its cached blocks back.
+ * <p>
+ * Slabs are returned to the system only by {@link #close()}, which must not
+ * race with other operations on the allocator. After close, caches of other threads
+ * still point into released slabs, so all operations throw {@link IllegalStateException}.
+ */
+public class SlabAllocator implements AutoCloseable {
+    private static final int SLAB_SHIFT = 18;
+    private static final long SLAB_SIZE = 1L << SLAB_SHIFT;
+    private static final int MIN_SHIFT = 4;
+    private static final int MAX_SHIFT = 14;
+    private static final long MAX_SIZE = 1L << MAX_SHIFT;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    // Slab header holds the block size; blocks start after it and are 64-byte aligned
+    private static final int HEADER_SIZE = 64;
+
+    // Maximum bytes of each size class cached by a thread
+    private static final long CACHE_BYTES = 256 * 1024;
+
+    private final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+    private final FreeList[] shared = new FreeList[CLASSES];
+    private final LongAdder liveBytes = new LongAdder();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final ConcurrentHashMap<Long, Boolean> regions = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private static class Cache {
+        final long[] heads = new long[CLASSES];
+        final int[] counts = new int[CLASSES];
+    }
+
+    private static class FreeList {
+        long head;
+        int count;
+    }
+
+    public SlabAllocator() {
+        for (int i = 0; i < CLASSES; i++) {
+            shared[i] = new FreeList();
+        }
+    }
+
+    /**
+     * Allocates at least size bytes aligned to 16 bytes.
+     */
+    public long allocate(long size) {
+        checkOpen();
+        if (size > MAX_SIZE) {
+            return allocateLarge(size);
+        }
+
+        int sizeClass = sizeClass(size);
+        Cache cache = caches.get();
+        long block = cache.heads[sizeClass];
+        if (block == 0) {
+            block = refill(cache, sizeClass);
+        }
+        cache.heads[sizeClass] = unsafe.getLong(block);
+        cache.counts[sizeClass]--;
+        liveBytes.add(1L << (sizeClass + MIN_SHIFT));
+        return block;
+    }
+
+    /**
+     * Releases a block allocated by this allocator. Does nothing if address is 0.
+     */
+    public void free(long address) {
+        if (address == 0) {
+            return;
+        }
+        checkOpen();
+
+        long slab = address & -SLAB_SIZE;
+        long blockSize = unsafe.getLong(slab);
+        if (blockSize > MAX_SIZE) {
+            freeLarge(slab, blockSize);
+            return;
+        }
+
+        int sizeClass = Long.numberOfTrailingZeros(blockSize) - MIN_SHIFT;
+        Cache cache = caches.get();
+        unsafe.putLong(address, cache.heads[sizeClass]);
+        cache.heads[sizeClass] = address;
+        if (++cache.counts[sizeClass] > cacheLimit(sizeClass)) {
+            release(cache, sizeClass, cache.counts[sizeClass] / 2);
+        }
+        liveBytes.add(-blockSize);
+    }
+
+    /**
+     * Moves all blocks cached by the current thread to shared lists.
+     */
+    public void flush() {
+        checkOpen();
+        Cache cache = caches.get();
+        for (int i = 0; i < CLASSES; i++) {
+            release(cache, i, cache.counts[i]);
+        }
+    }
+
+    /**
+     * Total size of allocated blocks, rounded up to size classes.
+     */
+    public long liveBytes() {
+        return liveBytes.sum();
+    }
+
+    /**
+     * Native memory held by the allocator, including free blocks.
+     */
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Returns all slabs and large blocks to the system.
+     * Addresses handed out by the allocator become invalid,
+     * and the allocator cannot be used anymore. Does nothing if already closed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Long region : regions.keySet()) {
+            free0(region);
+        }
+        regions.clear();
+        for (FreeList list : shared) {
+            synchronized (list) {
+                list.head = 0;
+                list.count = 0;
+            }
+        }
+        caches.remove();
+        reservedBytes.set(0);
+        liveBytes.reset();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Allocator is closed");
+        }
+    }
+
+    private static int sizeClass(long size) {
+        return size <= (1 << MIN_SHIFT) ? 0 : 64 - Long.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static int cacheLimit(int sizeClass) {
+        return (int) Math.max(CACHE_BYTES >>> (sizeClass + MIN_SHIFT), 4);
+    }
+
+    private long refill(Cache cache, int sizeClass) {
+        int batch = cacheLimit(sizeClass) / 2;
+        FreeList list = shared[sizeClass];
+        synchronized (list) {
+            if (list.count > 0) {
+                long head = list.head;
+                long tail = head;
+                int count = 1;
+                for (long next; count < batch && (next = unsafe.getLong(tail)) != 0; count++) {
+                    tail = next;
+                }
+                list.head = unsafe.getLong(tail);
+                list.count -= count;
+                unsafe.putLong(tail, 0);
+                cache.heads[sizeClass] = head;
+                cache.counts[sizeClass] = count;
+                return head;
+            }
+        }
+        return carveSlab(cache, sizeClass);
+    }
+
+    // Splits a new slab into blocks and puts them all into the local cache
+    private long carveSlab(Cache cache, int sizeClass) {
+        long blockSize = 1L << (sizeClass + MIN_SHIFT);
+        long slab = allocateRegion(SLAB_SIZE, blockSize);
+
+        long head = 0;
+        int count = 0;
+        for (long block = slab + SLAB_SIZE - blockSize; block >= slab + HEADER_SIZE; block -= blockSize) {
+            unsafe.putLong(block, head);
+            head = block;
+            count++;
+        }
+        cache.heads[sizeClass] = head;
+        cache.counts[sizeClass] = count;
+        return head;
+    }
+
+    private void release(Cache cache, int sizeClass, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        long head = cache.heads[sizeClass];
+        long tail = head;
+        for (int i = 1; i < count; i++) {
+            tail = unsafe.getLong(tail);
+        }
+        cache.heads[sizeClass] = unsafe.getLong(tail);
+        cache.counts[sizeClass] -= count;
+
+        FreeList list = shared[sizeClass];
+        synchronized (list) {
+            unsafe.putLong(tail, list.head);
+            list.head = head;
+            list.count += count;
+        }
+    }
+
+    // Large blocks are slab-aligned regions too, so that free() can find the header
+    private long allocateLarge(long size) {
+        long region = allocateRegion(HEADER_SIZE + size, size);
+        liveBytes.add(size);
+        return region + HEADER_SIZE;
+    }
+
+    private void freeLarge(long region, long size) {
+        regions.remove(region);
+        free0(region);
+        reservedBytes.addAndGet(-(HEADER_SIZE + size));
+        liveBytes.add(-size);
+    }
+
+    private long allocateRegion(long size, long blockSize) {
+        long region = aligned_alloc(SLAB_SIZE, size);
+        if (region == 0) {
+            throw new OutOfMemoryError("Cannot allocate " + size + " bytes of native memory");
+        }
+        unsafe.putLong(region, blockSize);
+        regions.put(region, Boolean.TRUE);
+        reservedBytes.addAndGet(size);
+        return region;
+    }
+
+    @Link
+    private static native long aligned_alloc(long alignment, long size);
+
+    @Link(name = "free")
+    private static native void free0(long ptr);
+
+    static {
+        Linker.linkClass(SlabAllocator.class);
+    }
+}
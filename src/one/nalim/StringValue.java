@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Customizes how a String parameter is passed to a native function.
+ * A String is always passed as a pointer to the bytes of its internal value array,
+ * without copying. With compact strings, a String of LATIN1 characters is stored
+ * one byte per character; other strings are stored in UTF-16 (coder = 1).
+ * The bytes are not null-terminated. A null String is passed as NULL.
+ * Unless the coder is passed, a UTF-16 String is also passed as NULL
+ * with zero length, since its bytes cannot be told apart from LATIN1.
+ * <p>
+ * This annotation adds the length and the coder of the string as extra int
+ * arguments of the native function right after the pointer. The caller
+ * does not pass them: the stub reads them from the String object.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface StringValue {
+    /**
+     * Pass the length of the value array in bytes after the pointer.
+     */
+    boolean length() default true;
+
+    /**
+     * Pass the coder (0 = LATIN1, 1 = UTF16) after the pointer and the length.
+     */
+    boolean coder() default false;
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Links a native method directly to a Linux system call, bypassing libc wrappers.
+ * The method returns the raw result of the system call, which is
+ * a negative error number on failure; errno is not updated.
+ * <p>
+ * Arguments must be integers, pointers or objects passed as pointers, up to 6 in total.
+ * The call is made in {@link Link.Mode#CRITICAL} mode, unless the method is also
+ * annotated with {@code @Link(mode = BLOCKING)}, e.g. for a {@code read} that may block.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Syscall {
+    /**
+     * System call number for the current architecture.
+     * If not specified, the number is found by the method name
+     * among common system calls, e.g. getpid, futex or io_uring_enter.
+     */
+    int value() default -1;
+
+    /**
+     * Name of the system call to find the number by, if different from the method name.
+     */
+    String name() default "";
+}
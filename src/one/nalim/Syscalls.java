@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers of common Linux system calls. x86_64 has its own table,
+ * while aarch64 and riscv64 share the generic one.
+ */
+class Syscalls {
+    private static final Map<String, int[]> numbers = new HashMap<>();
+
+    static {
+        //    name                 x86_64  generic
+        add("read",                  0,     63);
+        add("write",                 1,     64);
+        add("close",                 3,     57);
+        add("mmap",                  9,    222);
+        add("munmap",               11,    215);
+        add("pread64",              17,     67);
+        add("pwrite64",             18,     68);
+        add("readv",                19,     65);
+        add("writev",               20,     66);
+        add("sched_yield",          24,    124);
+        add("madvise",              28,    233);
+        add("getpid",               39,    172);
+        add("fsync",                74,     82);
+        add("fdatasync",            75,     83);
+        add("ftruncate",            77,     46);
+        add("gettid",              186,    178);
+        add("futex",               202,     98);
+        add("fadvise64",           221,    223);
+        add("clock_gettime",       228,    113);
+        add("clock_nanosleep",     230,    115);
+        add("openat",              257,     56);
+        add("eventfd2",            290,     19);
+        add("preadv",              295,     69);
+        add("pwritev",             296,     70);
+        add("getcpu",              309,    168);
+        add("getrandom",           318,    278);
+        add("membarrier",          324,    283);
+        add("io_uring_setup",      425,    425);
+        add("io_uring_enter",      426,    426);
+        add("io_uring_register",   427,    427);
+    }
+
+    private static void add(String name, int x86_64, int generic) {
+        numbers.put(name, new int[]{x86_64, generic});
+    }
+
+    static int number(String name, boolean x86_64) {
+        int[] pair = numbers.get(name);
+        if (pair == null) {
+            throw new IllegalArgumentException("Unknown system call: " + name);
+        }
+        return pair[x86_64 ? 0 : 1];
+    }
+}
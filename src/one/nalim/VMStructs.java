@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import jdk.vm.ci.hotspot.HotSpotJVMCIRuntime;
+import jdk.vm.ci.hotspot.HotSpotVMConfigAccess;
+
+import static one.nalim.JavaInternals.unsafe;
+
+/**
+ * JVM internals that are not part of JVMCI config. These are read from
+ * the VMStructs tables exported by libjvm for the Serviceability Agent.
+ */
+class VMStructs {
+    private static final HotSpotVMConfigAccess config =
+            new HotSpotVMConfigAccess(HotSpotJVMCIRuntime.runtime().getConfigStore());
+
+    // JavaThread layout used by thread state transitions
+    static final int threadStateOffset = fieldOffset("JavaThread", "_thread_state");
+    static final int jniEnvOffset = config.getFieldOffset("JavaThread::_jni_environment", Integer.class);
+    static final int pollingWordOffset = config.getFieldOffset("JavaThread::_poll_data", Integer.class)
+            + config.getFieldOffset("SafepointMechanism::ThreadData::_polling_word", Integer.class);
+
+    // Declared in Thread before JDK 18
+    static final int suspendFlagsOffset = threadFieldOffset("_suspend_flags");
+
+    static final int pendingExceptionOffset = config.getFieldOffset("ThreadShadow::_pending_exception", Integer.class);
+
+    static final int lastJavaSpOffset = lastJavaFrameOffset("_last_Java_sp");
+    static final int lastJavaPcOffset = lastJavaFrameOffset("_last_Java_pc");
+    static final int lastJavaFpOffset = lastJavaFrameOffset("_last_Java_fp");
+
+    // Native function of a JNI method is stored right after Method
+    static final int methodSize = typeSize("Method");
+
+    // Current entry of a method for compiled callers: its nmethod or the c2i adapter
+    static final int fromCompiledEntryOffset = config.getFieldOffset("Method::_from_compiled_entry", Integer.class);
+
+    // Decoding of compressed references loaded from object fields
+    static final boolean useCompressedOops = config.getFlag("UseCompressedOops", Boolean.class);
+    static final long narrowOopBase = config.getFieldValue("CompilerToVM::Data::Universe_narrow_oop_base", Long.class, "address");
+    static final int narrowOopShift = config.getFieldValue("CompilerToVM::Data::Universe_narrow_oop_shift", Integer.class, "int");
+
+    // Array length follows the klass pointer in the object header
+    static final int arrayLengthOffset = config.getFieldOffset("oopDesc::_metadata._klass", Integer.class)
+            + (config.getFlag("UseCompressedClassPointers", Boolean.class) ? 4 : 8);
+
+    // JavaThreadState values
+    static final int THREAD_IN_NATIVE = intConstant("_thread_in_native");
+    static final int THREAD_IN_NATIVE_TRANS = intConstant("_thread_in_native_trans");
+    static final int THREAD_IN_JAVA = intConstant("_thread_in_Java");
+
+    private static int lastJavaFrameOffset(String field) {
+        return config.getFieldOffset("JavaThread::_anchor", Integer.class)
+                + config.getFieldOffset("JavaFrameAnchor::" + field, Integer.class);
+    }
+
+    private static int threadFieldOffset(String field) {
+        try {
+            return fieldOffset("JavaThread", field);
+        } catch (IllegalStateException e) {
+            return fieldOffset("Thread", field);
+        }
+    }
+
+    static int fieldOffset(String typeName, String fieldName) {
+        long entry = unsafe.getAddress(symbol("gHotSpotVMStructs"));
+        long typeNameOffset = unsafe.getLong(symbol("gHotSpotVMStructEntryTypeNameOffset"));
+        long fieldNameOffset = unsafe.getLong(symbol("gHotSpotVMStructEntryFieldNameOffset"));
+        long offsetOffset = unsafe.getLong(symbol("gHotSpotVMStructEntryOffsetOffset"));
+        long stride = unsafe.getLong(symbol("gHotSpotVMStructEntryArrayStride"));
+
+        for (String type; (type = readString(unsafe.getAddress(entry + typeNameOffset))) != null; entry += stride) {
+            if (type.equals(typeName) && fieldName.equals(readString(unsafe.getAddress(entry + fieldNameOffset)))) {
+                return (int) unsafe.getLong(entry + offsetOffset);
+            }
+        }
+        throw new IllegalStateException("VM field not found: " + typeName + "::" + fieldName);
+    }
+
+    static int typeSize(String typeName) {
+        long entry = unsafe.getAddress(symbol("gHotSpotVMTypes"));
+        long typeNameOffset = unsafe.getLong(symbol("gHotSpotVMTypeEntryTypeNameOffset"));
+        long sizeOffset = unsafe.getLong(symbol("gHotSpotVMTypeEntrySizeOffset"));
+        long stride = unsafe.getLong(symbol("gHotSpotVMTypeEntryArrayStride"));
+
+        for (String type; (type = readString(unsafe.getAddress(entry + typeNameOffset))) != null; entry += stride) {
+            if (type.equals(typeName)) {
+                return (int) unsafe.getLong(entry + sizeOffset);
+            }
+        }
+        throw new IllegalStateException("VM type not found: " + typeName);
+    }
+
+    static int intConstant(String name) {
+        long entry = unsafe.getAddress(symbol("gHotSpotVMIntConstants"));
+        long nameOffset = unsafe.getLong(symbol("gHotSpotVMIntConstantEntryNameOffset"));
+        long valueOffset = unsafe.getLong(symbol("gHotSpotVMIntConstantEntryValueOffset"));
+        long stride = unsafe.getLong(symbol("gHotSpotVMIntConstantEntryArrayStride"));
+
+        for (String s; (s = readString(unsafe.getAddress(entry + nameOffset))) != null; entry += stride) {
+            if (s.equals(name)) {
+                return unsafe.getInt(entry + valueOffset);
+            }
+        }
+        throw new IllegalStateException("VM constant not found: " + name);
+    }
+
+    private static long symbol(String name) {
+        long address = Linker.findAddress(name);
+        if (address == 0) {
+            throw new IllegalStateException("VMStructs symbol not found: " + name);
+        }
+        return address;
+    }
+
+    static String readString(long address) {
+        if (address == 0) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b; (b = unsafe.getByte(address++)) != 0; ) {
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static one.nalim.AMD64CallingConvention.*;
+
+/**
+ * Golden checks of the amd64 intrinsics generated for both Java calling conventions,
+ * followed by a smoke test of the intrinsics linked for the current CPU.
+ */
+public class IntrinsicsTest {
+
+    public static void main(String[] args) {
+        // Linux/macOS: rsi, rdx, rcx; Windows: rdx, r8, r9
+        AMD64CallingConvention linux = new AMD64LinuxCallingConvention(false);
+        AMD64CallingConvention windows = new AMD64WindowsCallingConvention();
+        check("Linux arguments", linux.javaIntArg(0) == RSI && linux.javaIntArg(1) == RDX && linux.javaIntArg(2) == RCX);
+        check("Windows arguments", windows.javaIntArg(0) == RDX && windows.javaIntArg(1) == R8 && windows.javaIntArg(2) == R9);
+
+        check(Intrinsics.cacheLineAMD64(Intrinsics.CLFLUSH, RSI), "0fae3e c3");
+        check(Intrinsics.cacheLineAMD64(Intrinsics.CLFLUSHOPT, RSI), "660fae3e c3");
+        check(Intrinsics.cacheLineAMD64(Intrinsics.CLWB, RSI), "660fae36 c3");
+        check(Intrinsics.cacheLineAMD64(Intrinsics.CLFLUSHOPT, RDX), "660fae3a c3");
+        check(Intrinsics.cacheLineAMD64(Intrinsics.CLWB, R8), "66410fae30 c3");
+
+        // movsxd index, index32; prefetcht0 [array+index+16]; ret
+        check(Intrinsics.prefetchAMD64(RSI, RDX, 16), "4863d2 0f184c1610 c3");
+        check(Intrinsics.prefetchAMD64(RDX, R8, 16), "4d63c0 420f184c0210 c3");
+
+        // mov r10, regs; mov eax, leaf; mov ecx, subleaf; cpuid; 4 stores to [r10+16..28]; ret
+        check(Intrinsics.cpuidAMD64(RSI, RDX, RCX, 16),
+                "4989ca 89f0 89d1 0fa2 41894210 41895a14 41894a18 4189521c c3");
+        check(Intrinsics.cpuidAMD64(RDX, R8, R9, 16),
+                "4d89ca 89d0 4489c1 0fa2 41894210 41895a14 41894a18 4189521c c3");
+
+        smokeTest();
+        System.out.println("IntrinsicsTest: OK");
+    }
+
+    private static void smokeTest() {
+        boolean amd64 = Linker.isSupported("amd64");
+        if (!amd64 && !Linker.isSupported("aarch64")) {
+            return;
+        }
+
+        long t0 = Intrinsics.timestamp();
+        long t1 = Intrinsics.timestampSerialized();
+        check("timestamp is monotonic", t1 >= t0);
+
+        Intrinsics.spinWait();
+        Intrinsics.loadFence();
+        Intrinsics.storeFence();
+        Intrinsics.fullFence();
+
+        long address = JavaInternals.unsafe.allocateMemory(64);
+        try {
+            JavaInternals.unsafe.putLong(address, 42);
+            Intrinsics.writeBack(address);
+            Intrinsics.flush(address);
+            check("memory survives flush", JavaInternals.unsafe.getLong(address) == 42);
+        } finally {
+            JavaInternals.unsafe.freeMemory(address);
+        }
+
+        byte[] array = new byte[256];
+        for (int i = 0; i < array.length; i++) {
+            Intrinsics.prefetch(array, i);
+        }
+
+        if (amd64) {
+            int[] regs = new int[4];
+            Intrinsics.cpuid(0, 0, regs);
+            String vendor = new String(vendorBytes(regs[1], regs[3], regs[2]), StandardCharsets.US_ASCII);
+            check("cpuid vendor: " + vendor, regs[0] > 0 && !vendor.trim().isEmpty());
+
+            if (System.getProperty("os.name").toLowerCase().contains("linux")) {
+                int cpu = Intrinsics.currentCpu();
+                check("current CPU " + cpu, cpu >= 0 && cpu < 4096);
+            }
+        }
+    }
+
+    private static byte[] vendorBytes(int... words) {
+        ByteBuffer buf = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        for (int word : words) {
+            buf.putInt(word);
+        }
+        return buf.array();
+    }
+
+    private static void check(ByteBuffer buf, String expected) {
+        StringBuilder actual = new StringBuilder();
+        for (int i = 0; i < buf.position(); i++) {
+            actual.append(String.format("%02x", buf.get(i)));
+        }
+        if (!actual.toString().equals(expected.replace(" ", ""))) {
+            throw new AssertionError("Expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void check(String what, boolean condition) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
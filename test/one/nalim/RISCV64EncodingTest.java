@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2022 Andrei Pangin
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package one.nalim;
+
+import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Golden checks of RISC-V instructions emitted by RISCV64CallingConvention.
+ * The encoders do not depend on the host, so the check runs on any architecture.
+ */
+public class RISCV64EncodingTest {
+
+    public static void main(String[] args) {
+        RISCV64CallingConvention cc = new RISCV64CallingConvention();
+
+        // Reference encodings from the RISC-V ISA manual
+        check("addi a0, a0, 16", 0x01050513, RISCV64CallingConvention.addi(10, 10, 16));
+        check("mv a0, a1", 0x00058513, RISCV64CallingConvention.addi(10, 11, 0));
+        check("addi t0, t0, -1", 0xfff28293, RISCV64CallingConvention.addi(5, 5, -1));
+        check("ld t0, 8(sp)", 0x00813283, RISCV64CallingConvention.ld(5, 2, 8));
+        check("sd t0, 8(sp)", 0x00513423, RISCV64CallingConvention.sd(5, 2, 8));
+        check("sd a0, -8(sp)", 0xfea13c23, RISCV64CallingConvention.sd(10, 2, -8));
+        check("lbu t1, 20(a0)", 0x01454303, RISCV64CallingConvention.load(6, 10, 20, 0b100));
+
+        ByteBuffer buf = newBuffer();
+        cc.emitSyscall(buf, 64);
+        check(buf, 0x04000893, 0x00000073, 0x00008067);  // li a7, 64; ecall; ret
+
+        // Objects in registers point to the data, primitives are untouched
+        buf = newBuffer();
+        cc.javaToNative(buf, new Class<?>[]{byte[].class, int.class, long[].class}, new Annotation[3][0]);
+        check(buf, RISCV64CallingConvention.addi(10, 10, CallingConvention.arrayBaseOffset(byte[].class)),
+                RISCV64CallingConvention.addi(12, 12, CallingConvention.arrayBaseOffset(long[].class)));
+
+        // The ninth integer argument is adjusted in its stack slot
+        Class<?>[] types = new Class<?>[9];
+        java.util.Arrays.fill(types, long.class);
+        types[8] = int[].class;
+        buf = newBuffer();
+        cc.javaToNative(buf, types, new Annotation[9][0]);
+        check(buf, 0x00013283, RISCV64CallingConvention.addi(5, 5, CallingConvention.arrayBaseOffset(int[].class)),
+                0x00513023);  // ld t0, 0(sp); addi t0, t0, base; sd t0, 0(sp)
+
+        // Golden sequence for a typical code cache address
+        buf = newBuffer();
+        cc.emitCall(buf, 0x7f4a12345678L);
+        check(buf, 0x3fa512b7, 0x91a28293, 0x00b29293, 0x15928293, 0x00629293, 0x03828067);
+
+        // Every part of the address survives sign extension of the immediates
+        long[] addresses = {0, 0x1000, 0x7ff, 0x800, 0xffffffL, 0x7fffffffffffL, 0x7f4a12345678L,
+                0x00007fff80000800L, 0x0000555555554fc0L, 0x00007ffff7ffffffL};
+        for (long address : addresses) {
+            buf = newBuffer();
+            cc.emitCall(buf, address);
+            check("target of " + Long.toHexString(address), address, simulateJump(buf));
+        }
+
+        try {
+            RISCV64CallingConvention.addi(10, 10, 2048);
+            throw new AssertionError("imm12 overflow is not detected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        System.out.println("RISCV64EncodingTest: OK");
+    }
+
+    // Executes lui/addi/slli/jalr on t0 and returns the jump target
+    private static long simulateJump(ByteBuffer buf) {
+        long t0 = 0;
+        for (int i = 0; i < buf.position(); i += 4) {
+            int insn = buf.getInt(i);
+            int opcode = insn & 0x7f;
+            int funct3 = (insn >>> 12) & 7;
+            if (opcode == 0b0110111) {
+                t0 = insn & 0xfffff000;
+            } else if (opcode == 0b0010011 && funct3 == 0) {
+                t0 += insn >> 20;
+            } else if (opcode == 0b0010011 && funct3 == 1) {
+                t0 <<= (insn >>> 20) & 0x3f;
+            } else if (opcode == 0b1100111) {
+                return t0 + (insn >> 20);
+            } else {
+                throw new AssertionError("Unexpected instruction " + Integer.toHexString(insn));
+            }
+        }
+        throw new AssertionError("No jalr");
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void check(ByteBuffer buf, int... expected) {
+        int[] actual = new int[buf.position() / 4];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = buf.getInt(i * 4);
+        }
+        if (!java.util.Arrays.equals(expected, actual)) {
+            throw new AssertionError("Expected " + hex(expected) + ", got " + hex(actual));
+        }
+    }
+
+    private static void check(String what, long expected, long actual) {
+        if (expected != actual) {
+            throw new AssertionError(what + ": expected " + Long.toHexString(expected) + ", got " + Long.toHexString(actual));
+        }
+    }
+
+    private static String hex(int[] words) {
+        StringBuilder sb = new StringBuilder();
+        for (int word : words) {
+            sb.append(String.format("%08x ", word));
+        }
+        return sb.toString().trim();
+    }
+}